@@ -7,6 +7,7 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.Bitmap;
 import android.graphics.Color;
+import android.support.media.ExifInterface;
 import android.support.test.InstrumentationRegistry;
 import android.support.test.filters.SmallTest;
 import android.support.test.internal.runner.InstrumentationConnection;
@@ -90,6 +91,29 @@ public class CameraUtilsTest extends BaseTest {
     }
 
 
+    @Test
+    public void testDecodeBitmap_flipped() {
+        // A 100x200 picture with a white top left corner, tagged as rotated by 90 and mirrored.
+        Bitmap source = Bitmap.createBitmap(100, 200, Bitmap.Config.ARGB_8888);
+        for (int x = 0; x < 10; x++) {
+            for (int y = 0; y < 10; y++) {
+                source.setPixel(x, y, Color.WHITE);
+            }
+        }
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        source.compress(Bitmap.CompressFormat.JPEG, 100,
+                ExifUtils.withOrientation(os, ExifInterface.ORIENTATION_TRANSPOSE));
+        byte[] jpeg = os.toByteArray();
+
+        // Rotating by 90 moves the corner to the top right, then mirroring moves it back to the top left.
+        Bitmap other = CameraUtils.decodeBitmap(jpeg, Integer.MAX_VALUE, Integer.MAX_VALUE);
+        assertEquals(200, other.getWidth());
+        assertEquals(100, other.getHeight());
+        // JPEG is lossy, so we just check which corner is bright.
+        assertTrue(Color.red(other.getPixel(2, 2)) > 200);
+        assertTrue(Color.red(other.getPixel(197, 2)) < 50);
+    }
+
     @Test
     public void testDecodeDownscaledBitmap() {
         int width = 1000, height = 2000;
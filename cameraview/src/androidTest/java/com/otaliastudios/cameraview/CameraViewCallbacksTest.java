@@ -5,6 +5,9 @@ import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.PointF;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.support.media.ExifInterface;
 import android.support.test.filters.MediumTest;
 import android.support.test.runner.AndroidJUnit4;
 import android.view.ViewGroup;
@@ -17,6 +20,11 @@ import org.mockito.invocation.InvocationOnMock;
 import org.mockito.stubbing.Answer;
 import org.mockito.stubbing.Stubber;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+
 import static junit.framework.Assert.assertNotNull;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
@@ -144,6 +152,17 @@ public class CameraViewCallbacksTest extends BaseTest {
         verify(listener, times(1)).onVideoTaken(null);
     }
 
+    @Test
+    public void testDispatchOnPictureSaveError() {
+        PictureOutput output = PictureOutput.of(new ByteArrayOutputStream());
+        IOException error = new IOException("Error");
+        completeTask().when(listener).onPictureSaveError(output, error);
+        camera.mCameraCallbacks.dispatchOnPictureSaveError(output, error);
+
+        assertNotNull(task.await(200));
+        verify(listener, times(1)).onPictureSaveError(output, error);
+    }
+
     @Test
     public void testDispatchOnZoomChanged() {
         completeTask().when(listener).onZoomChanged(anyFloat(), any(float[].class), any(PointF[].class));
@@ -249,6 +268,45 @@ public class CameraViewCallbacksTest extends BaseTest {
         assertEquals(output[1], imageDim[1]);
     }
 
+    @Test
+    public void testProcessJpeg_file() {
+        File file = new File(context().getCacheDir(), "picture.jpg");
+        PictureOutput output = PictureOutput.of(file);
+        completeTask().when(listener).onPictureSaved(output);
+        byte[] jpeg = mockJpeg(100, 100);
+        camera.mCameraCallbacks.processImage(jpeg, true, false, output);
+        assertNotNull(task.await(3000));
+        verify(listener, never()).onPictureTaken(any(byte[].class));
+        Bitmap bitmap = BitmapFactory.decodeFile(file.getAbsolutePath());
+        assertEquals(100, bitmap.getWidth());
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void testProcessYuv_stream() {
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        PictureOutput output = PictureOutput.of(stream);
+        completeTask().when(listener).onPictureSaved(output);
+        camera.mCameraCallbacks.processSnapshot(mockYuv(100, 60), ExifInterface.ORIENTATION_NORMAL, null, output);
+        assertNotNull(task.await(3000));
+        Bitmap bitmap = BitmapFactory.decodeByteArray(stream.toByteArray(), 0, stream.size());
+        assertEquals(100, bitmap.getWidth());
+        assertEquals(60, bitmap.getHeight());
+    }
+
+    @Test
+    public void testProcessJpeg_error() {
+        completeTask().when(listener).onPictureSaveError(any(PictureOutput.class), any(IOException.class));
+        OutputStream stream = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("Error");
+            }
+        };
+        camera.mCameraCallbacks.processImage(mockJpeg(100, 100), true, false, PictureOutput.of(stream));
+        assertNotNull(task.await(3000));
+    }
+
     private int[] testProcessImage(boolean jpeg, boolean crop, int[] viewDim, int[] imageDim) {
         // End our task when onPictureTaken is called. Take note of the result.
         final Task<byte[]> jpegTask = new Task<>(true);
@@ -272,9 +330,16 @@ public class CameraViewCallbacksTest extends BaseTest {
 
         // Create fake JPEG array and trigger the process.
         if (jpeg) {
-            camera.mCameraCallbacks.processImage(mockJpeg(imageDim[0], imageDim[1]), true, false);
+            camera.mCameraCallbacks.processImage(mockJpeg(imageDim[0], imageDim[1]), true, false, null);
         } else {
-            camera.mCameraCallbacks.processSnapshot(mockYuv(imageDim[0], imageDim[1]), true, false);
+            // Snapshots are cropped by the controller, using the ratio given by the view.
+            YuvImage yuv = mockYuv(imageDim[0], imageDim[1]);
+            AspectRatio ratio = camera.mCameraCallbacks.getOutputCropRatio(true);
+            if (ratio != null) {
+                Rect crop = CropHelper.computeEvenCrop(imageDim[0], imageDim[1], ratio);
+                yuv = mockYuv(crop.width(), crop.height());
+            }
+            camera.mCameraCallbacks.processSnapshot(yuv, ExifInterface.ORIENTATION_NORMAL, null, null);
         }
 
         // Wait for result and get out dimensions.
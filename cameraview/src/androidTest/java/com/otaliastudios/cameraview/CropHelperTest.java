@@ -7,7 +7,6 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Color;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 
@@ -32,37 +31,37 @@ import static org.mockito.Mockito.when;
 @SmallTest
 public class CropHelperTest extends BaseTest {
 
-    @Test
-    public void testCropFromYuv() {
-        testCropFromYuv(1600, 1600, AspectRatio.of(16, 9));
-        testCropFromYuv(1600, 1600, AspectRatio.of(9, 16));
-    }
-
     @Test
     public void testCropFromJpeg() {
         testCropFromJpeg(1600, 1600, AspectRatio.of(16, 9));
         testCropFromJpeg(1600, 1600, AspectRatio.of(9, 16));
     }
 
-    private void testCropFromYuv(final int w, final int h, final AspectRatio target) {
-        final boolean wider = target.toFloat() > ((float) w / (float) h);
-        byte[] b = CropHelper.cropToJpeg(mockYuv(w, h), target, 100);
-        Bitmap result = BitmapFactory.decodeByteArray(b, 0, b.length);
+    @Test
+    public void testUnrotate() {
+        // A 40x20 picture, whose crop is expressed in the rotated picture.
+        assertEquals(new Rect(2, 4, 10, 14), CropHelper.unrotate(new Rect(2, 4, 10, 14), 40, 20, 0));
+        assertEquals(new Rect(4, 10, 30, 18), CropHelper.unrotate(new Rect(2, 4, 10, 30), 40, 20, 90));
+        assertEquals(new Rect(30, 6, 38, 16), CropHelper.unrotate(new Rect(2, 4, 10, 14), 40, 20, 180));
+        assertEquals(new Rect(10, 2, 36, 10), CropHelper.unrotate(new Rect(2, 4, 10, 30), 40, 20, 270));
+    }
 
-        // Assert.
-        AspectRatio ratio = AspectRatio.of(result.getWidth(), result.getHeight());
-        assertEquals(target, ratio);
-        if (wider) { // width must match.
-            assertEquals(result.getWidth(), w);
-        } else {
-            assertEquals(result.getHeight(), h);
-        }
+    @Test
+    public void testToStored() {
+        // Flipped orientations are rotated, then mirrored horizontally.
+        assertEquals(new Rect(30, 4, 38, 14), CropHelper.toStored(new Rect(2, 4, 10, 14), 40, 20, 0, true));
+        // Transpose: x and y are swapped.
+        assertEquals(new Rect(4, 2, 30, 10), CropHelper.toStored(new Rect(2, 4, 10, 30), 40, 20, 90, true));
+        // Flip vertical.
+        assertEquals(new Rect(2, 6, 10, 16), CropHelper.toStored(new Rect(2, 4, 10, 14), 40, 20, 180, true));
+        assertEquals(new Rect(4, 10, 30, 18), CropHelper.toStored(new Rect(2, 4, 10, 30), 40, 20, 90, false));
     }
 
     private void testCropFromJpeg(int w, int h, AspectRatio target) {
         final boolean wider = target.toFloat() > ((float) w / (float) h);
-        byte[] b = CropHelper.cropToJpeg(mockJpeg(w, h), target, 100);
-        Bitmap result = BitmapFactory.decodeByteArray(b, 0, b.length);
+        JpegOutputStream output = new JpegOutputStream(null);
+        CropHelper.cropToJpeg(mockJpeg(w, h), target, 100, output);
+        Bitmap result = BitmapFactory.decodeByteArray(output.getBuffer(), 0, output.size());
 
         // Assert.
         AspectRatio ratio = AspectRatio.of(result.getWidth(), result.getHeight());
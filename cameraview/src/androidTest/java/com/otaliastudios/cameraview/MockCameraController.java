@@ -76,6 +76,16 @@ public class MockCameraController extends CameraController {
         mSessionType = sessionType;
     }
 
+    @Override
+    void setHasFrameProcessors(boolean hasFrameProcessors) {
+        mHasFrameProcessors = hasFrameProcessors;
+    }
+
+    @Override
+    void setFrameHistorySize(int size) {
+        mFrameManager.setHistorySize(size);
+    }
+
     @Override
     void setHdr(Hdr hdr) {
         mHdr = hdr;
@@ -92,12 +102,12 @@ public class MockCameraController extends CameraController {
     }
 
     @Override
-    void capturePicture() {
+    void capturePicture(@Nullable PictureOutput output) {
         mPictureCaptured = true;
     }
 
     @Override
-    void captureSnapshot() {
+    void captureSnapshot(@Nullable PictureOutput output) {
     }
 
     @Override
@@ -12,6 +12,7 @@ import android.media.MediaRecorder;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.support.annotation.WorkerThread;
+import android.support.media.ExifInterface;
 import android.view.SurfaceHolder;
 
 import java.io.File;
@@ -26,8 +27,25 @@ class Camera1 extends CameraController implements Camera.PreviewCallback, Camera
     private static final String TAG = Camera1.class.getSimpleName();
     private static final CameraLogger LOG = CameraLogger.create(TAG);
 
+    // Rotated snapshot buffers are reused, so that bursts of snapshots do not allocate.
+    private static final int SNAPSHOT_POOL_BUDGET = 8 * 1024 * 1024;
+
     private Camera mCamera;
     private boolean mIsBound = false;
+    private boolean mPreviewCallbackWithBuffer = false;
+    private volatile boolean mSnapshotPending = false;
+    @Nullable private PictureOutput mSnapshotOutput; // Set before mSnapshotPending
+    private final BufferPool mSnapshotPool = new BufferPool(SNAPSHOT_POOL_BUDGET);
+
+    // Used for snapshots when the buffered preview callback is not active.
+    private final Camera.PreviewCallback mSnapshotCallback = new Camera.PreviewCallback() {
+        @Override
+        public void onPreviewFrame(byte[] data, Camera camera) {
+            if (!mSnapshotPending) return;
+            mSnapshotPending = false;
+            onSnapshotFrame(data, computeSensorToOutputOffset(), mPreviewSize, mPreviewFormat, null);
+        }
+    };
 
     private final int mPostFocusResetDelay = 3000;
     private Runnable mPostFocusResetRunnable = new Runnable() {
@@ -148,15 +166,64 @@ class Camera1 extends CameraController implements Camera.PreviewCallback, Camera
         params.setPictureSize(mPictureSize.getWidth(), mPictureSize.getHeight()); // <- allowed
         mCamera.setParameters(params);
 
-        mCamera.setPreviewCallbackWithBuffer(null); // Release anything left
-        mCamera.setPreviewCallbackWithBuffer(this); // Add ourselves
-        mFrameManager.allocate(ImageFormat.getBitsPerPixel(mPreviewFormat), mPreviewSize);
+        applyPreviewCallback();
 
         LOG.i(log, "Starting preview with startPreview().");
         mCamera.startPreview();
         LOG.i(log, "Started preview.");
     }
 
+    // Preview frames are only needed by frame processors and by the frame history. When they are
+    // not needed, we avoid the per-frame copy and keep no buffers around.
+    // A pending snapshot is taken by whichever callback is active.
+    private void applyPreviewCallback() {
+        mCamera.setPreviewCallbackWithBuffer(null); // Release anything left
+        mPreviewCallbackWithBuffer = needsPreviewFrames();
+        if (mPreviewCallbackWithBuffer) {
+            mCamera.setPreviewCallbackWithBuffer(this); // Add ourselves
+            YuvLayout layout = YuvLayout.of(mPreviewFormat, mPreviewSize.getWidth(), mPreviewSize.getHeight());
+            if (layout != null) {
+                mFrameManager.allocate(layout);
+            } else {
+                mFrameManager.allocate(ImageFormat.getBitsPerPixel(mPreviewFormat), mPreviewSize);
+            }
+        } else {
+            mFrameManager.release();
+            if (mSnapshotPending) mCamera.setOneShotPreviewCallback(mSnapshotCallback);
+        }
+    }
+
+    private boolean needsPreviewFrames() {
+        return mHasFrameProcessors || mFrameManager.getHistorySize() > 0;
+    }
+
+    @Override
+    void setHasFrameProcessors(final boolean hasFrameProcessors) {
+        if (hasFrameProcessors == mHasFrameProcessors) return;
+        mHasFrameProcessors = hasFrameProcessors;
+        schedule(null, true, new Runnable() {
+            @Override
+            public void run() {
+                if (!mIsBound || needsPreviewFrames() == mPreviewCallbackWithBuffer) return;
+                LOG.i("setHasFrameProcessors:", hasFrameProcessors);
+                applyPreviewCallback();
+            }
+        });
+    }
+
+    @Override
+    void setFrameHistorySize(final int size) {
+        mFrameManager.setHistorySize(size);
+        schedule(null, true, new Runnable() {
+            @Override
+            public void run() {
+                if (!mIsBound || needsPreviewFrames() == mPreviewCallbackWithBuffer) return;
+                LOG.i("setFrameHistorySize:", size);
+                applyPreviewCallback();
+            }
+        });
+    }
+
     @WorkerThread
     @Override
     void onStart() {
@@ -195,6 +262,14 @@ class Camera1 extends CameraController implements Camera.PreviewCallback, Camera
         LOG.i("onStop:", "About to clean up.");
         mHandler.get().removeCallbacks(mPostFocusResetRunnable);
         mFrameManager.release();
+        if (mSnapshotPending) {
+            // The snapshot frame will never come.
+            mSnapshotPending = false;
+            mIsCapturingImage = false;
+        }
+        mSnapshotOutput = null;
+        mSnapshotPool.clear();
+        mPreviewCallbackWithBuffer = false;
 
         if (mCamera != null) {
             LOG.i("onStop:", "Clean up.", "Ending video.");
@@ -463,7 +538,7 @@ class Camera1 extends CameraController implements Camera.PreviewCallback, Camera
     }
 
     @Override
-    void capturePicture() {
+    void capturePicture(@Nullable final PictureOutput output) {
         LOG.v("capturePicture: scheduling");
         schedule(null, true, new Runnable() {
             @Override
@@ -493,7 +568,7 @@ class Camera1 extends CameraController implements Camera.PreviewCallback, Camera
                             @Override
                             public void onPictureTaken(byte[] data, final Camera camera) {
                                 mIsCapturingImage = false;
-                                mCameraCallbacks.processImage(data, outputMatchesView, outputFlip);
+                                mCameraCallbacks.processImage(data, outputMatchesView, outputFlip, output);
                                 camera.startPreview(); // This is needed, read somewhere in the docs.
                             }
                         }
@@ -504,8 +579,9 @@ class Camera1 extends CameraController implements Camera.PreviewCallback, Camera
 
 
     @Override
-    void captureSnapshot() {
+    void captureSnapshot(@Nullable final PictureOutput output) {
         LOG.v("captureSnapshot: scheduling");
+        final long time = System.currentTimeMillis();
         schedule(null, true, new Runnable() {
             @Override
             public void run() {
@@ -514,47 +590,92 @@ class Camera1 extends CameraController implements Camera.PreviewCallback, Camera
                 // This won't work while capturing a video.
                 // Switch to capturePicture.
                 if (mIsCapturingVideo) {
-                    capturePicture();
+                    capturePicture(output);
                     return;
                 }
                 mIsCapturingImage = true;
-                mCamera.setOneShotPreviewCallback(new Camera.PreviewCallback() {
-                    @Override
-                    public void onPreviewFrame(final byte[] data, Camera camera) {
-                        mCameraCallbacks.onShutter(true);
-
-                        // Got to rotate the preview frame, since byte[] data here does not include
-                        // EXIF tags automatically set by camera. So either we add EXIF, or we rotate.
-                        // Adding EXIF to a byte array, unfortunately, is hard.
-                        final int sensorToOutput = computeSensorToOutputOffset();
-                        final int sensorToView = computeSensorToViewOffset();
-                        final boolean outputMatchesView = (sensorToOutput + sensorToView + 180) % 180 == 0;
-                        final boolean outputFlip = mFacing == Facing.FRONT;
-                        final boolean flip = sensorToOutput % 180 != 0;
-                        final int preWidth = mPreviewSize.getWidth();
-                        final int preHeight = mPreviewSize.getHeight();
-                        final int postWidth = flip ? preHeight : preWidth;
-                        final int postHeight = flip ? preWidth : preHeight;
-                        final int format = mPreviewFormat;
-                        WorkerHandler.run(new Runnable() {
-                            @Override
-                            public void run() {
+                mSnapshotOutput = output;
 
-                                LOG.v("captureSnapshot: rotating.");
-                                byte[] rotatedData = RotationHelper.rotate(data, preWidth, preHeight, sensorToOutput);
-                                LOG.v("captureSnapshot: rotated.");
-                                YuvImage yuv = new YuvImage(rotatedData, format, postWidth, postHeight, null);
-                                mCameraCallbacks.processSnapshot(yuv, outputMatchesView, outputFlip);
-                                mIsCapturingImage = false;
-                            }
-                        });
+                // If we have a history, take the frame that was shown when this was called.
+                Frame frame = mFrameManager.getHistoryFrame(time);
+                if (frame != null) {
+                    LOG.v("captureSnapshot: using history frame. Delay:", time - frame.getTime());
+                    onSnapshotFrame(frame.getData(), frame.getRotation(), frame.getSize(), frame.getFormat(), frame);
+                    return;
+                }
+                mSnapshotPending = true;
+                if (!mPreviewCallbackWithBuffer) {
+                    // Setting a one-shot callback would clear the buffers used by frame processors,
+                    // so we only do this when there are none. Otherwise, onPreviewFrame takes the next frame.
+                    mCamera.setOneShotPreviewCallback(mSnapshotCallback);
+                }
+            }
+        });
+    }
 
-                        // It seems that the buffers are already cleared here, so we need to allocate again.
-                        mCamera.setPreviewCallbackWithBuffer(null); // Release anything left
-                        mCamera.setPreviewCallbackWithBuffer(Camera1.this); // Add ourselves
-                        mFrameManager.allocate(ImageFormat.getBitsPerPixel(mPreviewFormat), mPreviewSize);
-                    }
-                });
+    // If frame is not null, it was retained for us and we must release it.
+    private void onSnapshotFrame(final byte[] data, final int sensorToOutput, Size size, final int format,
+                                 @Nullable final Frame frame) {
+        mCameraCallbacks.onShutter(true);
+        final PictureOutput output = mSnapshotOutput;
+        mSnapshotOutput = null;
+
+        // Got to rotate the preview frame, since byte[] data here does not include
+        // EXIF tags automatically set by camera. So either we add EXIF, or we rotate.
+        // When adding EXIF, data is neither rotated nor flipped, and decoders will do it.
+        final int sensorToView = computeSensorToViewOffset();
+        final boolean outputFlip = mFacing == Facing.FRONT;
+        final boolean exif = mSnapshotExifOrientation;
+        final int rotation = exif ? 0 : sensorToOutput;
+        final boolean mirror = !exif && outputFlip;
+        final int orientation = exif ? ExifUtils.getOrientationTag(sensorToOutput, outputFlip) :
+                ExifInterface.ORIENTATION_NORMAL;
+        final boolean dataMatchesView = (rotation + sensorToView + 180) % 180 == 0;
+        final boolean flip = rotation % 180 != 0;
+        final int preWidth = size.getWidth();
+        final int preHeight = size.getHeight();
+        final int postWidth = flip ? preHeight : preWidth;
+        final int postHeight = flip ? preWidth : preHeight;
+        YuvLayout frameLayout = frame != null ? frame.getLayout() : null;
+        if (frameLayout == null) frameLayout = YuvLayout.of(format, preWidth, preHeight);
+        // Other formats were never supported here, so keep treating them as NV21.
+        final YuvLayout layout = frameLayout != null ? frameLayout : YuvLayout.nv21(preWidth, preHeight);
+        WorkerHandler.run(new Runnable() {
+            @Override
+            public void run() {
+
+                // Rotate, crop, scale and flip in a single pass, so we only touch the pixels we keep.
+                AspectRatio ratio = mCameraCallbacks.getOutputCropRatio(dataMatchesView);
+                Rect crop = ratio == null ? new Rect(0, 0, postWidth, postHeight) :
+                        CropHelper.computeEvenCrop(postWidth, postHeight, ratio);
+                int scale = computeSnapshotScale(new Size(crop.width(), crop.height()), !dataMatchesView);
+                if (scale > 1) {
+                    // Shrink the crop so that it is made of whole blocks.
+                    int width = crop.width() / (2 * scale) * (2 * scale);
+                    int height = crop.height() / (2 * scale) * (2 * scale);
+                    int x = crop.left + ((crop.width() - width) / 2 & ~1);
+                    int y = crop.top + ((crop.height() - height) / 2 & ~1);
+                    crop.set(x, y, x + width, y + height);
+                }
+                boolean cropping = crop.width() != postWidth || crop.height() != postHeight;
+
+                // One-shot data is ours, so we can use it as is if there's nothing to do.
+                // Frame data must be copied anyway, because the camera will reuse it.
+                // Other layouts are converted to NV21 by the same pass.
+                BufferPool pool = null;
+                byte[] outputData = data;
+                if (frame != null || !layout.isNv21() || rotation != 0 || mirror || cropping || scale > 1) {
+                    LOG.v("captureSnapshot: transforming.");
+                    pool = mSnapshotPool;
+                    outputData = RotationHelper.transform(data, layout, rotation,
+                            crop.left, crop.top, crop.width(), crop.height(), scale, mirror, pool);
+                    LOG.v("captureSnapshot: transformed.");
+                }
+                // The camera can have its buffer back.
+                if (frame != null) frame.release();
+                YuvImage yuv = new YuvImage(outputData, ImageFormat.NV21, crop.width() / scale, crop.height() / scale, null);
+                mCameraCallbacks.processSnapshot(yuv, orientation, pool, output);
+                mIsCapturingImage = false;
             }
         });
     }
@@ -566,6 +687,11 @@ class Camera1 extends CameraController implements Camera.PreviewCallback, Camera
                 computeSensorToOutputOffset(),
                 mPreviewSize,
                 mPreviewFormat);
+        if (mSnapshotPending) {
+            // Take this frame without interrupting the buffered callback.
+            mSnapshotPending = false;
+            onSnapshotFrame(frame.getData(), frame.getRotation(), frame.getSize(), frame.getFormat(), frame.retain());
+        }
         mCameraCallbacks.dispatchFrame(frame);
     }
 
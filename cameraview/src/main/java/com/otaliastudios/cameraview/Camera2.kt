@@ -65,6 +65,7 @@ internal class Camera2(cameraCallbacks: CameraView.CameraCallbacks, private val
     private var mCamera2Id: String? = null
     private var mCameraCharacteristics: CameraCharacteristics? = null
     private var mImageReader: ImageReader? = null
+    private var mPictureOutput: PictureOutput? = null
     private var mPreview2Size: Size? = null
     private var mPicture2Size: Size? = null
     private var mVideoSize: Size? = null
@@ -482,7 +483,7 @@ internal class Camera2(cameraCallbacks: CameraView.CameraCallbacks, private val
                     val buffer = image.planes[0].buffer
                     val bytes = ByteArray(buffer.remaining())
                     buffer.get(bytes)
-                    mCameraCallbacks.processImage(bytes, true, false)
+                    mCameraCallbacks.processImage(bytes, true, false, mPictureOutput)
 
                     val outputPic = getOutputPictureFile()
 
@@ -696,12 +697,24 @@ internal class Camera2(cameraCallbacks: CameraView.CameraCallbacks, private val
 
     }
 
-    override fun capturePicture() {
+    override fun setHasFrameProcessors(hasFrameProcessors: Boolean) {
+        mHasFrameProcessors = hasFrameProcessors
+    }
+
+    override fun setFrameHistorySize(size: Int) {
+        mFrameManager.setHistorySize(size)
+    }
+
+    override fun capturePicture(output: PictureOutput?) {
+        mPictureOutput = output
         lockFocus()
     }
 
-    override fun captureSnapshot() {
+    override fun captureSnapshot(output: PictureOutput?) {
         // TODO: how is this different from capturing the picture?
+        if (output != null) {
+            mCameraCallbacks.dispatchOnPictureSaveError(output, IOException("Snapshots are not supported yet."))
+        }
     }
 
     override fun startVideo(file: File) {
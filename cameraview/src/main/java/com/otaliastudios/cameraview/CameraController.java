@@ -30,6 +30,9 @@ abstract class CameraController implements
     static final int STATE_STARTING = 1; // Camera is about to start.
     static final int STATE_STARTED = 2; // Camera is available and we can set parameters.
 
+    static final int DEFAULT_FRAME_POOL_SIZE = 2;
+    static final int MAX_SNAPSHOT_SCALE = 16; // Snapshots can be scaled down by 1, 2, ..., 16.
+
     protected final CameraView.CameraCallbacks mCameraCallbacks;
     protected CameraPreview mPreview;
     protected WorkerHandler mHandler;
@@ -52,6 +55,8 @@ abstract class CameraController implements
     protected Mapper mMapper;
     protected FrameManager mFrameManager;
     protected SizeSelector mPictureSizeSelector;
+    protected SizeSelector mSnapshotSizeSelector;
+    protected boolean mSnapshotExifOrientation;
     protected MediaRecorder mMediaRecorder;
     protected File mVideoFile;
     protected Size mPictureSize;
@@ -64,6 +69,7 @@ abstract class CameraController implements
 
     protected boolean mIsCapturingImage = false;
     protected boolean mIsCapturingVideo = false;
+    protected boolean mHasFrameProcessors = false;
 
     protected int mState = STATE_STOPPED;
 
@@ -82,7 +88,7 @@ abstract class CameraController implements
         mCrashHandler = new Handler(Looper.getMainLooper());
         mHandler = WorkerHandler.get("CameraViewController");
         mHandler.getThread().setUncaughtExceptionHandler(this);
-        mFrameManager = new FrameManager(2, this);
+        mFrameManager = new FrameManager(DEFAULT_FRAME_POOL_SIZE, this);
     }
 
     void setPreview(CameraPreview cameraPreview) {
@@ -273,6 +279,29 @@ abstract class CameraController implements
         mPictureSizeSelector = selector;
     }
 
+    final void setSnapshotSizeSelector(SizeSelector selector) {
+        mSnapshotSizeSelector = selector;
+    }
+
+    final void setSnapshotExifOrientation(boolean exifOrientation) {
+        mSnapshotExifOrientation = exifOrientation;
+    }
+
+    // This can be called multiple times, e.g. when frame processors hold frames for longer.
+    // Growing the pool hands new buffers to the camera, so it must happen in the camera thread.
+    final void setFramePoolSizeBounds(final int minPoolSize, final int maxPoolSize) {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mFrameManager.setPoolSizeBounds(minPoolSize, maxPoolSize);
+            }
+        });
+    }
+
+    final void setFrozenFrameBudget(int budget) {
+        mFrameManager.setFrozenBudget(budget);
+    }
+
     //endregion
 
     //region Abstract setters and APIs
@@ -307,9 +336,16 @@ abstract class CameraController implements
     // Throw if capturing. If in video session, recompute capture size, and, if needed, preview size.
     abstract void setVideoQuality(VideoQuality videoQuality);
 
-    abstract void capturePicture();
+    // If closed, keep. If opened, start or stop delivering preview frames.
+    abstract void setHasFrameProcessors(boolean hasFrameProcessors);
+
+    // Frames in the history can be used by captureSnapshot(). Might start or stop delivering preview frames.
+    abstract void setFrameHistorySize(int size);
+
+    // If output is not null, the picture is written there instead of being passed to listeners.
+    abstract void capturePicture(@Nullable PictureOutput output);
 
-    abstract void captureSnapshot();
+    abstract void captureSnapshot(@Nullable PictureOutput output);
 
     abstract void startVideo(@NonNull File file);
 
@@ -367,6 +403,14 @@ abstract class CameraController implements
         return mPictureSizeSelector;
     }
 
+    final SizeSelector getSnapshotSizeSelector() {
+        return mSnapshotSizeSelector;
+    }
+
+    final boolean getSnapshotExifOrientation() {
+        return mSnapshotExifOrientation;
+    }
+
     final Size getPictureSize() {
         return mPictureSize;
     }
@@ -383,6 +427,18 @@ abstract class CameraController implements
         return mPreviewSize;
     }
 
+    final int getFramePoolSize() {
+        return mFrameManager.getPoolSize();
+    }
+
+    final int getFrozenFrameBudget() {
+        return mFrameManager.getFrozenBudget();
+    }
+
+    final int getFrozenFrameCount() {
+        return mFrameManager.getFrozenFrameCount();
+    }
+
     //endregion
 
     //region Orientation utils
@@ -489,6 +545,32 @@ abstract class CameraController implements
         return result;
     }
 
+    /**
+     * Returns the integer factor that a snapshot of the given size should be scaled down by.
+     * The snapshot selector is given the sizes that we can reach, with even dimensions.
+     *
+     * @param outputSize the snapshot size, before scaling
+     * @param flip whether the snapshot is rotated with respect to the view world
+     * @return the scale factor
+     */
+    protected final int computeSnapshotScale(Size outputSize, boolean flip) {
+        if (mSnapshotSizeSelector == null) return 1;
+        List<Size> list = new ArrayList<>();
+        for (int scale = 1; scale <= MAX_SNAPSHOT_SCALE; scale++) {
+            int width = outputSize.getWidth() / (2 * scale) * 2;
+            int height = outputSize.getHeight() / (2 * scale) * 2;
+            if (width == 0 || height == 0) break;
+            Size size = new Size(width, height);
+            list.add(flip ? size.flip() : size);
+        }
+        if (list.isEmpty()) return 1;
+        SizeSelector selector = SizeSelectors.or(mSnapshotSizeSelector, SizeSelectors.biggest());
+        Size result = selector.select(new ArrayList<>(list)).get(0);
+        LOG.i("computeSnapshotScale:", "result:", result, "flip:", flip);
+        int index = list.indexOf(result);
+        return index >= 0 ? index + 1 : 1;
+    }
+
     @NonNull
     protected final CamcorderProfile getCamcorderProfile() {
         switch (mVideoQuality) {
@@ -2,9 +2,11 @@ package com.otaliastudios.cameraview;
 
 import android.graphics.PointF;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.annotation.UiThread;
 
 import java.io.File;
+import java.io.IOException;
 
 public abstract class CameraListener {
 
@@ -64,6 +66,33 @@ public abstract class CameraListener {
     }
 
 
+    /**
+     * Notifies that a picture previously captured with {@link CameraView#capturePicture(File)},
+     * {@link CameraView#captureSnapshot(File)} or their stream and channel overloads
+     * was written to its destination. In this case, {@link #onPictureTaken(byte[])} is not called.
+     *
+     * @param output the destination, holding the file, stream or channel passed to the capture method
+     */
+    @UiThread
+    public void onPictureSaved(@NonNull PictureOutput output) {
+
+    }
+
+
+    /**
+     * Notifies that a picture previously captured with {@link CameraView#capturePicture(File)},
+     * {@link CameraView#captureSnapshot(File)} or their overloads could not be written
+     * to its destination, which might hold part of it. The camera is not affected.
+     *
+     * @param output the destination, holding the file, stream or channel passed to the capture method
+     * @param error the error thrown while writing
+     */
+    @UiThread
+    public void onPictureSaveError(@NonNull PictureOutput output, @NonNull IOException error) {
+
+    }
+
+
     /**
      * Notifies that a video capture has just ended. The file parameter is the one that
      * was passed to {@link CameraView#startCapturingVideo(File)}, if any.
@@ -19,13 +19,16 @@ import android.os.Handler;
 import android.os.Looper;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.media.ExifInterface;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.ViewGroup;
 import android.widget.FrameLayout;
 
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -49,9 +52,13 @@ public class CameraView extends FrameLayout {
     final static boolean DEFAULT_CROP_OUTPUT = false;
     final static boolean DEFAULT_PLAY_SOUNDS = true;
 
+    // Encoded pictures are written to arrays from this pool, so that captures do not allocate.
+    private final static int JPEG_POOL_BUDGET = 8 * 1024 * 1024;
+
     // Self managed parameters
     private int mJpegQuality;
     private boolean mCropOutput;
+    private boolean mLosslessCropOutput;
     private boolean mPlaySounds;
     private HashMap<Gesture, GestureAction> mGestureMap = new HashMap<>(4);
 
@@ -63,6 +70,10 @@ public class CameraView extends FrameLayout {
     private MediaActionSound mSound;
     /* for tests */ List<CameraListener> mListeners = new CopyOnWriteArrayList<>();
     /* for tests */ List<FrameProcessor> mFrameProcessors = new CopyOnWriteArrayList<>();
+    private FrameDispatcher mFrameDispatcher;
+    private int mFramePoolMinSize = CameraController.DEFAULT_FRAME_POOL_SIZE;
+    private int mFramePoolMaxSize = CameraController.DEFAULT_FRAME_POOL_SIZE;
+    private int mSnapshotHistorySize = 0;
 
     // Views
     GridLinesLayout mGridLinesLayout;
@@ -75,6 +86,7 @@ public class CameraView extends FrameLayout {
     private Handler mUiHandler;
     private WorkerHandler mWorkerHandler;
     private WorkerHandler mFrameProcessorsHandler;
+    private final BufferPool mJpegPool = new BufferPool(JPEG_POOL_BUDGET);
 
     public CameraView(@NonNull Context context) {
         super(context, null);
@@ -152,6 +164,7 @@ public class CameraView extends FrameLayout {
         mUiHandler = new Handler(Looper.getMainLooper());
         mWorkerHandler = WorkerHandler.get("CameraViewWorker");
         mFrameProcessorsHandler = WorkerHandler.get("FrameProcessorsWorker");
+        mFrameDispatcher = new FrameDispatcher(mFrameProcessorsHandler);
 
         // Views
         mGridLinesLayout = new GridLinesLayout(context);
@@ -487,7 +500,7 @@ public class CameraView extends FrameLayout {
         switch (action) {
 
             case CAPTURE:
-                mCameraController.capturePicture();
+                mCameraController.capturePicture(null);
                 break;
 
             case FOCUS:
@@ -615,6 +628,7 @@ public class CameraView extends FrameLayout {
         clearCameraListeners();
         clearFrameProcessors();
         mCameraController.destroy();
+        mJpegPool.clear();
     }
 
     //endregion
@@ -1013,6 +1027,21 @@ public class CameraView extends FrameLayout {
     }
 
 
+    /**
+     * Sets the maximum snapshot size. Snapshots can be scaled down by an integer factor,
+     * and the {@link SizeSelector} will be invoked with the list of sizes that can be reached,
+     * after cropping. The first acceptable size will be used.
+     * This is much faster than scaling down the output JPEG, since downscaling happens while
+     * rotating the preview frame, and a smaller image is compressed.
+     * See the {@link SizeSelectors} class for handy utilities for creating selectors.
+     *
+     * @param selector a size selector
+     */
+    public void setSnapshotSize(@NonNull SizeSelector selector) {
+        mCameraController.setSnapshotSizeSelector(selector);
+    }
+
+
     /**
      * Sets video recording quality. This is not guaranteed to be supported by current device.
      * If it's not, a lower quality will be chosen, until a supported one is found.
@@ -1088,6 +1117,33 @@ public class CameraView extends FrameLayout {
     }
 
 
+    /**
+     * Whether pictures that are cropped because of {@link #setCropOutput(boolean)} should be
+     * cropped losslessly, without decoding and encoding them again. This is much faster and keeps
+     * the original quality and EXIF data, but the crop can be off center by up to 15 pixels.
+     * The output has the exact aspect ratio anyway.
+     *
+     * Pictures that can't be cropped this way, e.g. progressive JPEGs, are cropped as usual.
+     * This does not apply to snapshots, which are cropped before being compressed.
+     *
+     * @param losslessCropOutput whether to crop losslessly
+     */
+    public void setLosslessCropOutput(boolean losslessCropOutput) {
+        mLosslessCropOutput = losslessCropOutput;
+    }
+
+
+    /**
+     * Returns whether pictures are cropped losslessly.
+     *
+     * @see #setLosslessCropOutput(boolean)
+     * @return whether we crop losslessly
+     */
+    public boolean getLosslessCropOutput() {
+        return mLosslessCropOutput;
+    }
+
+
     /**
      * Sets a {@link CameraListener} instance to be notified of all
      * interesting events that will happen during the camera lifecycle.
@@ -1143,8 +1199,26 @@ public class CameraView extends FrameLayout {
      * @param processor a frame processor.
      */
     public void addFrameProcessor(FrameProcessor processor) {
+        addFrameProcessor(processor, null);
+    }
+
+
+    /**
+     * Adds a {@link FrameProcessor} instance to be notified of
+     * new frames in the preview stream, with the given options.
+     *
+     * If options are passed, the processor will run on its own lane, in parallel with
+     * other processors, and frames will be dropped according to the options when it is busy.
+     * Otherwise, it is called serially with the other processors that have no options.
+     *
+     * @param processor a frame processor.
+     * @param options options for this processor, or null
+     */
+    public void addFrameProcessor(FrameProcessor processor, @Nullable FrameProcessorOptions options) {
         if (processor != null) {
             mFrameProcessors.add(processor);
+            mFrameDispatcher.add(processor, options);
+            onFrameProcessorsChanged();
         }
     }
 
@@ -1157,6 +1231,8 @@ public class CameraView extends FrameLayout {
     public void removeFrameProcessor(FrameProcessor processor) {
         if (processor != null) {
             mFrameProcessors.remove(processor);
+            mFrameDispatcher.remove(processor);
+            onFrameProcessorsChanged();
         }
     }
 
@@ -1167,6 +1243,93 @@ public class CameraView extends FrameLayout {
      */
     public void clearFrameProcessors() {
         mFrameProcessors.clear();
+        mFrameDispatcher.clear();
+        onFrameProcessorsChanged();
+    }
+
+
+    /**
+     * Sets how many bytes can be kept in memory to be reused by {@link Frame#freeze()}.
+     * Frozen frames give their array back when released, and a new frozen frame
+     * of the same size will reuse it instead of allocating a new one.
+     * Arrays that would exceed this budget are left to the garbage collector.
+     *
+     * @param bytes the budget in bytes
+     */
+    public void setFrozenFrameBudget(int bytes) {
+        if (bytes < 0) {
+            throw new IllegalArgumentException("Budget should be >= 0");
+        }
+        mCameraController.setFrozenFrameBudget(bytes);
+    }
+
+
+    /**
+     * Returns how many bytes can be kept in memory to be reused by {@link Frame#freeze()}.
+     *
+     * @see #setFrozenFrameBudget(int)
+     * @return the budget in bytes
+     */
+    public int getFrozenFrameBudget() {
+        return mCameraController.getFrozenFrameBudget();
+    }
+
+
+    /**
+     * Returns the number of frames that were frozen with {@link Frame#freeze()}
+     * and not released yet. This can help finding memory leaks.
+     *
+     * @return the frozen frames count
+     */
+    public int getFrozenFrameCount() {
+        return mCameraController.getFrozenFrameCount();
+    }
+
+
+    /**
+     * Lets the number of preview buffers change between the given bounds, depending on how
+     * long frame processors take. Slow processors will get more buffers, so that the camera
+     * does not skip frames, while fast processors will keep a small memory footprint.
+     * Each buffer has the size of a preview frame.
+     *
+     * By default, both bounds are 2, which means that the pool size is fixed.
+     * Processors added with {@link FrameProcessorOptions} add some buffers to both bounds,
+     * to make room for the frames that they hold.
+     * Bounds are applied asynchronously, in the camera thread.
+     *
+     * @param minSize the minimum number of buffers, at least 2
+     * @param maxSize the maximum number of buffers, at least minSize
+     */
+    public void setFramePoolSizeBounds(int minSize, int maxSize) {
+        if (minSize < CameraController.DEFAULT_FRAME_POOL_SIZE) {
+            throw new IllegalArgumentException("Min size should be >= " + CameraController.DEFAULT_FRAME_POOL_SIZE);
+        }
+        if (maxSize < minSize) {
+            throw new IllegalArgumentException("Max size should be >= min size");
+        }
+        mFramePoolMinSize = minSize;
+        mFramePoolMaxSize = maxSize;
+        onFrameProcessorsChanged();
+    }
+
+
+    /**
+     * Returns the current number of preview buffers.
+     * This can change while previewing, if bounds were set with {@link #setFramePoolSizeBounds(int, int)}.
+     *
+     * @return the number of preview buffers
+     */
+    public int getFramePoolSize() {
+        return mCameraController.getFramePoolSize();
+    }
+
+
+    // Processors with their own lane and the snapshot history hold frames for longer. Make room for them.
+    // When there are no processors, the controller can stop delivering frames.
+    private void onFrameProcessorsChanged() {
+        int held = mFrameDispatcher.getHeldFramesCount() + mSnapshotHistorySize;
+        mCameraController.setFramePoolSizeBounds(mFramePoolMinSize + held, mFramePoolMaxSize + held);
+        mCameraController.setHasFrameProcessors(!mFrameDispatcher.isEmpty());
     }
 
 
@@ -1181,7 +1344,46 @@ public class CameraView extends FrameLayout {
      * @see #captureSnapshot()
      */
     public void capturePicture() {
-        mCameraController.capturePicture();
+        mCameraController.capturePicture(null);
+    }
+
+
+    /**
+     * Same as {@link #capturePicture()}, but the picture is written to the given file
+     * instead of being passed to {@link CameraListener#onPictureTaken(byte[])}, so it is never
+     * copied into an array of its own. When done, this triggers
+     * {@link CameraListener#onPictureSaved(PictureOutput)} or
+     * {@link CameraListener#onPictureSaveError(PictureOutput, IOException)}.
+     *
+     * @param file the file where the picture will be saved
+     * @see #capturePicture()
+     */
+    public void capturePicture(@NonNull File file) {
+        mCameraController.capturePicture(PictureOutput.of(file));
+    }
+
+
+    /**
+     * Same as {@link #capturePicture(File)}, but the picture is written to the given stream,
+     * which is flushed but not closed.
+     *
+     * @param stream the stream where the picture will be written
+     * @see #capturePicture(File)
+     */
+    public void capturePicture(@NonNull OutputStream stream) {
+        mCameraController.capturePicture(PictureOutput.of(stream));
+    }
+
+
+    /**
+     * Same as {@link #capturePicture(File)}, but the picture is written to the given channel,
+     * at its current position. The channel is not closed.
+     *
+     * @param channel the channel where the picture will be written
+     * @see #capturePicture(File)
+     */
+    public void capturePicture(@NonNull FileChannel channel) {
+        mCameraController.capturePicture(PictureOutput.of(channel));
     }
 
 
@@ -1196,7 +1398,102 @@ public class CameraView extends FrameLayout {
      * @see #capturePicture()
      */
     public void captureSnapshot() {
-        mCameraController.captureSnapshot();
+        mCameraController.captureSnapshot(null);
+    }
+
+
+    /**
+     * Same as {@link #captureSnapshot()}, but the snapshot is written to the given file
+     * instead of being passed to {@link CameraListener#onPictureTaken(byte[])}, so it is never
+     * copied into an array of its own. When done, this triggers
+     * {@link CameraListener#onPictureSaved(PictureOutput)} or
+     * {@link CameraListener#onPictureSaveError(PictureOutput, IOException)}.
+     *
+     * @param file the file where the snapshot will be saved
+     * @see #captureSnapshot()
+     */
+    public void captureSnapshot(@NonNull File file) {
+        mCameraController.captureSnapshot(PictureOutput.of(file));
+    }
+
+
+    /**
+     * Same as {@link #captureSnapshot(File)}, but the snapshot is written to the given stream,
+     * which is flushed but not closed.
+     *
+     * @param stream the stream where the snapshot will be written
+     * @see #captureSnapshot(File)
+     */
+    public void captureSnapshot(@NonNull OutputStream stream) {
+        mCameraController.captureSnapshot(PictureOutput.of(stream));
+    }
+
+
+    /**
+     * Same as {@link #captureSnapshot(File)}, but the snapshot is written to the given channel,
+     * at its current position. The channel is not closed.
+     *
+     * @param channel the channel where the snapshot will be written
+     * @see #captureSnapshot(File)
+     */
+    public void captureSnapshot(@NonNull FileChannel channel) {
+        mCameraController.captureSnapshot(PictureOutput.of(channel));
+    }
+
+
+    /**
+     * Keeps the given number of recent preview frames in memory, so that {@link #captureSnapshot()}
+     * can use the frame that was being shown when it was called, instead of waiting for the next one.
+     * This reduces the snapshot latency, but keeps the preview stream active and
+     * uses one more preview buffer for each frame in the history. Frames are not copied.
+     *
+     * Defaults to 0, which means no history.
+     *
+     * @param frames the number of frames to keep
+     */
+    public void setSnapshotHistorySize(int frames) {
+        if (frames < 0) {
+            throw new IllegalArgumentException("History size should be >= 0");
+        }
+        mSnapshotHistorySize = frames;
+        onFrameProcessorsChanged();
+        mCameraController.setFrameHistorySize(frames);
+    }
+
+
+    /**
+     * Returns the number of recent preview frames kept for {@link #captureSnapshot()}.
+     *
+     * @see #setSnapshotHistorySize(int)
+     * @return the history size
+     */
+    public int getSnapshotHistorySize() {
+        return mSnapshotHistorySize;
+    }
+
+
+    /**
+     * Controls how {@link #captureSnapshot()} orients its output. By default, preview frames
+     * are rotated and flipped before being compressed. If this is true, frames are compressed
+     * as they are, and the JPEG gets an EXIF orientation tag instead. This makes snapshots faster,
+     * but the output must be decoded by something that reads EXIF, like
+     * {@link CameraUtils#decodeBitmap(byte[], CameraUtils.BitmapCallback)}.
+     *
+     * @param exifOrientation whether to write EXIF orientation instead of rotating
+     */
+    public void setSnapshotExifOrientation(boolean exifOrientation) {
+        mCameraController.setSnapshotExifOrientation(exifOrientation);
+    }
+
+
+    /**
+     * Returns whether snapshots are oriented with an EXIF tag rather than being rotated.
+     *
+     * @see #setSnapshotExifOrientation(boolean)
+     * @return whether EXIF orientation is used
+     */
+    public boolean getSnapshotExifOrientation() {
+        return mCameraController.getSnapshotExifOrientation();
     }
 
 
@@ -1301,7 +1598,8 @@ public class CameraView extends FrameLayout {
 
     /**
      * Returns the size used for capturing snapshots.
-     * This is equal to {@link #getPreviewSize()}.
+     * This is equal to {@link #getPreviewSize()}. Output images might be smaller,
+     * if they are cropped or if a selector was passed to {@link #setSnapshotSize(SizeSelector)}.
      *
      * @return a Size
      */
@@ -1375,8 +1673,12 @@ public class CameraView extends FrameLayout {
         void dispatchOnCameraClosed();
         void onCameraPreviewSizeChanged();
         void onShutter(boolean shouldPlaySound);
-        void processImage(byte[] jpeg, boolean consistentWithView, boolean flipHorizontally);
-        void processSnapshot(YuvImage image, boolean consistentWithView, boolean flipHorizontally);
+        void processImage(byte[] jpeg, boolean consistentWithView, boolean flipHorizontally,
+                          @Nullable PictureOutput output);
+        void processSnapshot(YuvImage image, int exifOrientation, @Nullable BufferPool pool,
+                             @Nullable PictureOutput output);
+        @Nullable AspectRatio getOutputCropRatio(boolean consistentWithView);
+        void dispatchOnPictureSaveError(PictureOutput output, IOException error);
         void dispatchOnVideoTaken(File file);
         void dispatchOnFocusStart(@Nullable Gesture trigger, PointF where);
         void dispatchOnFocusEnd(@Nullable Gesture trigger, boolean success, PointF where);
@@ -1457,49 +1759,128 @@ public class CameraView extends FrameLayout {
          *                           consistent measure?
          * @param flipHorizontally whether this picture should be flipped horizontally after decoding,
          *                         because it was taken with the front camera.
+         * @param output if not null, where the picture should be written
          */
         @Override
-        public void processImage(final byte[] jpeg, final boolean consistentWithView, final boolean flipHorizontally) {
+        public void processImage(final byte[] jpeg, final boolean consistentWithView, final boolean flipHorizontally,
+                                 @Nullable final PictureOutput output) {
             mLogger.i("processImage");
             mWorkerHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    byte[] jpeg2 = jpeg;
-                    if (mCropOutput && mCameraPreview.isCropping()) {
-                        // If consistent, dimensions of the jpeg Bitmap and dimensions of getWidth(), getHeight()
-                        // Live in the same reference system.
-                        int w = consistentWithView ? getWidth() : getHeight();
-                        int h = consistentWithView ? getHeight() : getWidth();
-                        AspectRatio targetRatio = AspectRatio.of(w, h);
-                        mLogger.i("processImage", "is consistent?", consistentWithView);
-                        mLogger.i("processImage", "viewWidth?", getWidth(), "viewHeight?", getHeight());
-                        jpeg2 = CropHelper.cropToJpeg(jpeg, targetRatio, mJpegQuality);
+                    AspectRatio targetRatio = getOutputCropRatio(consistentWithView);
+                    if (targetRatio == null) {
+                        if (output != null) {
+                            savePicture(jpeg, jpeg.length, output);
+                        } else {
+                            dispatchOnPictureTaken(jpeg);
+                        }
+                        return;
                     }
-                    dispatchOnPictureTaken(jpeg2);
+                    JpegOutputStream stream = new JpegOutputStream(mJpegPool);
+                    if (!mLosslessCropOutput || !CropHelper.cropToJpegLossless(jpeg, targetRatio, stream)) {
+                        CropHelper.cropToJpeg(jpeg, targetRatio, mJpegQuality, stream);
+                    }
+                    dispatchOnPictureTaken(stream, output);
                 }
             });
         }
 
+        /**
+         * The image was already cropped by the controller, using {@link #getOutputCropRatio(boolean)},
+         * and either rotated and flipped, or given an EXIF orientation. So we just have to compress it.
+         *
+         * @param exifOrientation the EXIF orientation tag to be added, if not ORIENTATION_NORMAL
+         * @param pool if not null, the pool that the image data should be given back to
+         * @param output if not null, where the picture should be written
+         */
         @Override
-        public void processSnapshot(final YuvImage yuv, final boolean consistentWithView, boolean flipHorizontally) {
+        public void processSnapshot(final YuvImage yuv, final int exifOrientation, @Nullable final BufferPool pool,
+                                    @Nullable final PictureOutput output) {
             mLogger.i("processSnapshot");
             mWorkerHandler.post(new Runnable() {
                 @Override
                 public void run() {
-                    byte[] jpeg;
-                    if (mCropOutput && mCameraPreview.isCropping()) {
-                        int w = consistentWithView ? getWidth() : getHeight();
-                        int h = consistentWithView ? getHeight() : getWidth();
-                        AspectRatio targetRatio = AspectRatio.of(w, h);
-                        mLogger.i("processSnapshot", "is consistent?", consistentWithView);
-                        mLogger.i("processSnapshot", "viewWidth?", getWidth(), "viewHeight?", getHeight());
-                        jpeg = CropHelper.cropToJpeg(yuv, targetRatio, mJpegQuality);
-                    } else {
-                        ByteArrayOutputStream out = new ByteArrayOutputStream();
-                        yuv.compressToJpeg(new Rect(0, 0, yuv.getWidth(), yuv.getHeight()), mJpegQuality, out);
-                        jpeg = out.toByteArray();
+                    JpegOutputStream jpeg = new JpegOutputStream(mJpegPool);
+                    jpeg.reserve(JpegOutputStream.estimateSize(yuv.getWidth(), yuv.getHeight(), mJpegQuality));
+                    OutputStream stream = exifOrientation == ExifInterface.ORIENTATION_NORMAL ? jpeg :
+                            ExifUtils.withOrientation(jpeg, exifOrientation);
+                    yuv.compressToJpeg(new Rect(0, 0, yuv.getWidth(), yuv.getHeight()), mJpegQuality, stream);
+                    // The YUV data was taken from this pool, and we are done with it.
+                    if (pool != null) pool.recycle(yuv.getYuvData());
+                    dispatchOnPictureTaken(jpeg, output);
+                }
+            });
+        }
+
+        /**
+         * Returns the ratio that pictures should be cropped to, or null if they should not.
+         *
+         * @param consistentWithView is the final image (decoded respecting EXIF data) consistent with
+         *                           the view width and height? Or should we flip dimensions to have a
+         *                           consistent measure?
+         * @return the target ratio, or null
+         */
+        @Nullable
+        @Override
+        public AspectRatio getOutputCropRatio(boolean consistentWithView) {
+            if (!mCropOutput || !mCameraPreview.isCropping()) return null;
+            // If consistent, dimensions of the image and dimensions of getWidth(), getHeight()
+            // live in the same reference system.
+            int w = consistentWithView ? getWidth() : getHeight();
+            int h = consistentWithView ? getHeight() : getWidth();
+            mLogger.i("getOutputCropRatio", "is consistent?", consistentWithView);
+            mLogger.i("getOutputCropRatio", "viewWidth?", getWidth(), "viewHeight?", getHeight());
+            return AspectRatio.of(w, h);
+        }
+
+        // Listeners need an array of the exact size, so this is the only copy
+        // of the encoded data, unless it is written to an output. The pooled array can then be reused.
+        private void dispatchOnPictureTaken(JpegOutputStream jpeg, @Nullable PictureOutput output) {
+            if (output != null) {
+                byte[] buffer = jpeg.getBuffer();
+                savePicture(buffer == null ? new byte[0] : buffer, jpeg.size(), output);
+                jpeg.release();
+            } else {
+                byte[] data = jpeg.toByteArray();
+                jpeg.release();
+                dispatchOnPictureTaken(data);
+            }
+        }
+
+        // Called on the worker thread. The data is only read here, so it can be recycled afterwards.
+        private void savePicture(byte[] jpeg, int length, final PictureOutput output) {
+            mLogger.i("savePicture", output.getFile());
+            IOException error = null;
+            try {
+                output.write(jpeg, length);
+            } catch (IOException e) {
+                mLogger.e("savePicture", "Could not write the picture.", e);
+                error = e;
+            }
+            if (error != null) {
+                dispatchOnPictureSaveError(output, error);
+                return;
+            }
+            mUiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (CameraListener listener : mListeners) {
+                        listener.onPictureSaved(output);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void dispatchOnPictureSaveError(final PictureOutput output, final IOException error) {
+            mLogger.i("dispatchOnPictureSaveError", output.getFile(), error);
+            mUiHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (CameraListener listener : mListeners) {
+                        listener.onPictureSaveError(output, error);
                     }
-                    dispatchOnPictureTaken(jpeg);
                 }
             });
         }
@@ -1616,20 +1997,12 @@ public class CameraView extends FrameLayout {
 
         @Override
         public void dispatchFrame(final Frame frame) {
-            if (mFrameProcessors.isEmpty()) {
+            if (mFrameDispatcher.isEmpty()) {
                 // Mark as released. This instance will be reused.
                 frame.release();
             } else {
                 mLogger.v("dispatchFrame:", frame.getTime(), "processors:", mFrameProcessors.size());
-                mFrameProcessorsHandler.post(new Runnable() {
-                    @Override
-                    public void run() {
-                        for (FrameProcessor processor : mFrameProcessors) {
-                            processor.process(frame);
-                        }
-                        frame.release();
-                    }
-                });
+                mFrameDispatcher.dispatch(frame);
             }
         }
 
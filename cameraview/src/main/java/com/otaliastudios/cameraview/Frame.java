@@ -1,30 +1,87 @@
 package com.otaliastudios.cameraview;
 
+import android.graphics.ImageFormat;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A preview frame to be processed by {@link FrameProcessor}s.
  */
 public class Frame {
 
+    /**
+     * The maximum level that can be passed to {@link #getYPlane(int)}.
+     */
+    public final static int MAX_PYRAMID_LEVEL = 3;
+
     /* for tests */ FrameManager mManager;
+    long mDispatchTime = 0; // Used by FrameManager to measure how long frames are held.
 
     private byte[] mData = null;
     private long mTime = -1;
     private int mRotation = 0;
     private Size mSize = null;
     private int mFormat = -1;
+    private YuvLayout mLayout = null; // Kept on release, reused while format and size do not change.
+    private boolean mFrozen = false;
+    private final AtomicInteger mRetainCount = new AtomicInteger(0);
+    private final FramePlane mYPlane = new FramePlane();
+    private final FramePlane mVuPlane = new FramePlane();
+    private final FramePlane mUPlane = new FramePlane();
+    private final FramePlane mVPlane = new FramePlane();
+    private final byte[][] mPyramid = new byte[MAX_PYRAMID_LEVEL + 1][];
+    private final FramePlane[] mPyramidPlanes = new FramePlane[MAX_PYRAMID_LEVEL + 1];
 
     Frame(@NonNull FrameManager manager) {
         mManager = manager;
     }
 
     void set(byte[] data, long time, int rotation, Size size, int format) {
+        YuvLayout layout = mLayout;
+        if (size == null) {
+            layout = null;
+        } else if (layout == null || !layout.matches(format, size.getWidth(), size.getHeight())) {
+            layout = YuvLayout.of(format, size.getWidth(), size.getHeight());
+        }
+        set(data, time, rotation, size, format, layout);
+    }
+
+    void set(byte[] data, long time, int rotation, Size size, @NonNull YuvLayout layout) {
+        set(data, time, rotation, size, layout.getFormat(), layout);
+    }
+
+    private void set(byte[] data, long time, int rotation, Size size, int format, YuvLayout layout) {
         this.mData = data;
         this.mTime = time;
         this.mRotation = rotation;
         this.mSize = size;
         this.mFormat = format;
+        this.mLayout = layout;
+        mRetainCount.set(1);
+    }
+
+    /**
+     * Retains this frame, so that its contents are not replaced when
+     * {@link FrameProcessor#process(Frame)} returns. This does not copy any data:
+     * the frame will keep holding the original buffer until it is released.
+     * Each call to this method must be balanced by a call to {@link #release()}.
+     *
+     * This is much cheaper than {@link #freeze()}, but the camera can not use the buffer
+     * while it is retained, so holding too many frames might cause frames to be skipped.
+     * Use {@link #freeze()} if you must keep the frame for a long time.
+     *
+     * @return this frame
+     */
+    public Frame retain() {
+        while (true) {
+            int count = mRetainCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Can not retain a frame that was released.");
+            }
+            if (mRetainCount.compareAndSet(count, count + 1)) return this;
+        }
     }
 
     @Override
@@ -38,31 +95,65 @@ public class Frame {
      * This can be kept or safely passed to other threads.
      * Using freeze without clearing with {@link #release()} can result in memory leaks.
      *
+     * This copies the whole data array. If you only need the frame for a short time,
+     * please consider using {@link #retain()} instead.
+     *
      * @return a frozen Frame
      */
     public Frame freeze() {
-        byte[] data = new byte[mData.length];
+        FrameManager manager = mManager;
+        byte[] data = manager != null ? manager.obtainFrozenBuffer(mData.length) : new byte[mData.length];
         System.arraycopy(mData, 0, data, 0, mData.length);
-        Frame other = new Frame(mManager);
-        other.set(data, mTime, mRotation, mSize, mFormat);
+        Frame other = new Frame(manager);
+        other.set(data, mTime, mRotation, mSize, mFormat, mLayout);
+        other.mFrozen = true;
         return other;
     }
 
     /**
      * Disposes the contents of this frame. Can be useful for frozen frames
-     * that are not useful anymore.
+     * that are not useful anymore, and must be called for each {@link #retain()} call.
+     * Contents are only disposed when the last holder releases the frame.
+     * Releasing a frame that was already released does nothing.
      */
     public void release() {
-        if (mManager != null) {
-            // If needed, the manager will call releaseManager on us.
-            mManager.onFrameReleased(this);
+        while (true) {
+            int count = mRetainCount.get();
+            // Already released: recycling again would hand this instance out twice.
+            if (count <= 0) return;
+            if (mRetainCount.compareAndSet(count, count - 1)) {
+                // Someone else is still holding this frame.
+                if (count > 1) return;
+                break;
+            }
+        }
+
+        // Clear before notifying: once recycled, this instance might be reused at any time.
+        // Planes are built under the same lock, so they never see a half cleared frame.
+        FrameManager manager = mManager;
+        byte[] data;
+        synchronized (this) {
+            for (int level = 1; level <= MAX_PYRAMID_LEVEL; level++) {
+                if (mPyramid[level] != null) {
+                    if (manager != null) manager.recyclePyramidBuffer(mPyramid[level]);
+                    mPyramid[level] = null;
+                }
+            }
+            data = mData;
+            mData = null;
+            mRotation = 0;
+            mTime = -1;
+            mSize = null;
+            mFormat = -1;
         }
 
-        mData = null;
-        mRotation = 0;
-        mTime = -1;
-        mSize = null;
-        mFormat = -1;
+        if (manager != null && mFrozen) {
+            // The buffer goes back to the frozen pool, and this instance is not reused.
+            manager.onFrozenFrameReleased(this, data);
+        } else if (manager != null) {
+            // If needed, the manager will call releaseManager on us.
+            manager.onFrameReleased(this, data);
+        }
     }
 
     // Once this is called, this instance is not usable anymore.
@@ -78,6 +169,144 @@ public class Frame {
         return mData;
     }
 
+    /**
+     * Returns a view over the Y (luma) plane of this frame, which has the frame size
+     * and one sample for each pixel. No data is copied, and the same view instance
+     * is returned for the lifetime of this frame.
+     *
+     * @return the Y plane
+     */
+    @NonNull
+    public synchronized FramePlane getYPlane() {
+        checkPlanes();
+        YuvLayout layout = mLayout;
+        mYPlane.set(mData, layout.getYOffset(), layout.getWidth(), layout.getHeight(),
+                layout.getYRowStride(), 1);
+        return mYPlane;
+    }
+
+    /**
+     * Returns a view over the Y (luma) plane of this frame, downsampled by 2 at each level,
+     * by averaging blocks of 2x2 pixels. Level 0 is the plane returned by {@link #getYPlane()},
+     * level 1 has half its size, level 2 a quarter, and so on up to {@link #MAX_PYRAMID_LEVEL}.
+     *
+     * Each level is computed at most once per frame, when first requested, and then shared by
+     * all processors that ask for it. Levels are stored in pooled arrays, which are given back
+     * when the frame is released.
+     *
+     * @param level the pyramid level, between 0 and {@link #MAX_PYRAMID_LEVEL}
+     * @return the downsampled Y plane
+     */
+    @NonNull
+    public synchronized FramePlane getYPlane(int level) {
+        if (level < 0 || level > MAX_PYRAMID_LEVEL) {
+            throw new IllegalArgumentException("Level should be between 0 and " + MAX_PYRAMID_LEVEL);
+        }
+        if (level == 0) return getYPlane();
+        FramePlane plane = mPyramidPlanes[level];
+        if (mPyramid[level] == null) {
+            // Build from the previous level, which might be computed as well.
+            FramePlane source = getYPlane(level - 1);
+            int width = source.getWidth() / 2;
+            int height = source.getHeight() / 2;
+            if (width == 0 || height == 0) {
+                throw new IllegalStateException("Frame is too small for level " + level);
+            }
+            FrameManager manager = mManager;
+            byte[] data = manager != null ? manager.obtainPyramidBuffer(width * height) : new byte[width * height];
+            downsample(source, data, width, height);
+            mPyramid[level] = data;
+            if (plane == null) {
+                plane = new FramePlane();
+                mPyramidPlanes[level] = plane;
+            }
+            plane.set(data, 0, width, height, width, 1);
+        }
+        return plane;
+    }
+
+    // Averages 2x2 blocks of the source into output, which has the given size.
+    private static void downsample(FramePlane source, byte[] output, int width, int height) {
+        byte[] input = source.getData();
+        int stride = source.getRowStride();
+        int index = 0;
+        for (int y = 0; y < height; y++) {
+            int row = source.getOffset() + 2 * y * stride;
+            int next = row + stride;
+            for (int x = 0; x < width; x++) {
+                int i = 2 * x;
+                int sum = (input[row + i] & 0xFF) + (input[row + i + 1] & 0xFF)
+                        + (input[next + i] & 0xFF) + (input[next + i + 1] & 0xFF);
+                output[index++] = (byte) ((sum + 2) >> 2);
+            }
+        }
+    }
+
+    /**
+     * Returns a view over the interleaved VU (chroma) plane of this frame, which has
+     * half the frame size and two samples for each pixel: V first, then U.
+     * No data is copied, and the same view instance is returned for the lifetime of this frame.
+     *
+     * This is only available when V and U samples are interleaved in this order, as in
+     * {@link ImageFormat#NV21}. Use {@link #getUPlane()} and {@link #getVPlane()} otherwise.
+     *
+     * @return the VU plane
+     */
+    @NonNull
+    public synchronized FramePlane getVuPlane() {
+        checkPlanes();
+        YuvLayout layout = mLayout;
+        if (!layout.isVuInterleaved()) {
+            throw new IllegalStateException("VU plane is not available for this layout.");
+        }
+        mVuPlane.set(mData, layout.getVOffset(), (layout.getWidth() + 1) / 2, (layout.getHeight() + 1) / 2,
+                layout.getChromaRowStride(), 2);
+        return mVuPlane;
+    }
+
+    /**
+     * Returns a view over the U (blue chroma) plane of this frame, which has half the
+     * frame size. Samples might be interleaved with V samples, in which case the plane
+     * pixel stride is 2. No data is copied, and the same view instance is returned
+     * for the lifetime of this frame.
+     *
+     * @return the U plane
+     */
+    @NonNull
+    public synchronized FramePlane getUPlane() {
+        checkPlanes();
+        YuvLayout layout = mLayout;
+        mUPlane.set(mData, layout.getUOffset(), (layout.getWidth() + 1) / 2, (layout.getHeight() + 1) / 2,
+                layout.getChromaRowStride(), layout.getChromaPixelStride());
+        return mUPlane;
+    }
+
+    /**
+     * Returns a view over the V (red chroma) plane of this frame, which has half the
+     * frame size. Samples might be interleaved with U samples, in which case the plane
+     * pixel stride is 2. No data is copied, and the same view instance is returned
+     * for the lifetime of this frame.
+     *
+     * @return the V plane
+     */
+    @NonNull
+    public synchronized FramePlane getVPlane() {
+        checkPlanes();
+        YuvLayout layout = mLayout;
+        mVPlane.set(mData, layout.getVOffset(), (layout.getWidth() + 1) / 2, (layout.getHeight() + 1) / 2,
+                layout.getChromaRowStride(), layout.getChromaPixelStride());
+        return mVPlane;
+    }
+
+    private void checkPlanes() {
+        if (mData == null) {
+            throw new IllegalStateException("Can not access planes of a released frame.");
+        }
+        if (mLayout == null) {
+            throw new IllegalStateException("Planes are not available for format " + mFormat);
+        }
+    }
+
     /**
      * Returns the milliseconds epoch for this frame,
      * in the {@link System#currentTimeMillis()} reference.
@@ -111,7 +340,8 @@ public class Frame {
     /**
      * Returns the data format, in one of the
      * {@link android.graphics.ImageFormat} constants.
-     * This will always be {@link android.graphics.ImageFormat#NV21} for now.
+     * This is {@link android.graphics.ImageFormat#NV21} for Camera1 frames, unless
+     * a different preview format was set.
      *
      * @return the data format
      * @see android.graphics.ImageFormat
@@ -119,4 +349,15 @@ public class Frame {
     public int getFormat() {
         return mFormat;
     }
+
+    /**
+     * Returns the layout of the Y, U and V planes in the data array,
+     * or null if the frame was released or its format is not a known YUV format.
+     *
+     * @return the data layout
+     */
+    @Nullable
+    public YuvLayout getLayout() {
+        return mData != null ? mLayout : null;
+    }
 }
@@ -0,0 +1,270 @@
+package com.otaliastudios.cameraview;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Dispatches preview frames to {@link FrameProcessor}s.
+ *
+ * Processors are grouped in lanes. Each lane processes its frames serially, but different lanes
+ * work in parallel, so a slow lane will not slow down the others.
+ *
+ * - Processors added without options share the default lane, which runs on the default executor.
+ *   This lane never drops frames: when the processors are slow, the camera will run out of buffers.
+ * - Processors added with {@link FrameProcessorOptions} get their own lane, running on a shared
+ *   pool of threads, with the queue size and {@link FrameProcessorOptions.Backpressure} policy
+ *   defined in the options. Lanes can also skip frames to respect the processor frame rate,
+ *   before queueing them.
+ *
+ * Each lane retains the frames that it accepts, so frames go back to the {@link FrameManager}
+ * only when the last lane has released them. {@link FrameWindowProcessor}s also retain
+ * the frames in their window.
+ */
+class FrameDispatcher {
+
+    private final static String TAG = FrameDispatcher.class.getSimpleName();
+    private final static CameraLogger LOG = CameraLogger.create(TAG);
+
+    private final Lane mDefaultLane;
+    private final List<Lane> mLanes = new CopyOnWriteArrayList<>();
+    private Executor mLaneExecutor;
+
+    FrameDispatcher(@NonNull Executor defaultExecutor) {
+        this(defaultExecutor, null);
+    }
+
+    FrameDispatcher(@NonNull Executor defaultExecutor, @Nullable Executor laneExecutor) {
+        mDefaultLane = new Lane(defaultExecutor, FrameProcessorOptions.Backpressure.DROP_NEWEST, Integer.MAX_VALUE);
+        mLaneExecutor = laneExecutor;
+    }
+
+    void add(@NonNull FrameProcessor processor, @Nullable FrameProcessorOptions options) {
+        if (processor instanceof FrameWindowProcessor) {
+            ((FrameWindowProcessor) processor).setActive(true);
+        }
+        if (options == null) {
+            mDefaultLane.mProcessors.add(processor);
+        } else {
+            Lane lane = new Lane(getLaneExecutor(), options.getBackpressure(), options.getQueueSize());
+            lane.setFrameRate(options.getMaxFrameRate(), options.getFrameInterval());
+            lane.mProcessors.add(processor);
+            mLanes.add(lane);
+        }
+    }
+
+    void remove(@NonNull FrameProcessor processor) {
+        if (processor instanceof FrameWindowProcessor) {
+            ((FrameWindowProcessor) processor).setActive(false);
+        }
+        if (mDefaultLane.mProcessors.remove(processor)) return;
+        for (Lane lane : mLanes) {
+            if (lane.mProcessors.contains(processor)) {
+                mLanes.remove(lane);
+                lane.clear();
+                return;
+            }
+        }
+    }
+
+    void clear() {
+        deactivate(mDefaultLane);
+        mDefaultLane.mProcessors.clear();
+        mDefaultLane.clear();
+        for (Lane lane : mLanes) {
+            deactivate(lane);
+            lane.clear();
+        }
+        mLanes.clear();
+    }
+
+    private static void deactivate(Lane lane) {
+        for (FrameProcessor processor : lane.mProcessors) {
+            if (processor instanceof FrameWindowProcessor) {
+                ((FrameWindowProcessor) processor).setActive(false);
+            }
+        }
+    }
+
+    boolean isEmpty() {
+        return mDefaultLane.mProcessors.isEmpty() && mLanes.isEmpty();
+    }
+
+    /**
+     * Returns how many frames can be held by the dedicated lanes at the same time:
+     * for each lane, a full queue plus the frame being processed.
+     * Frames held by {@link FrameWindowProcessor} windows, in any lane, are added.
+     * The frame pool should have room for these, or the default lane will starve.
+     *
+     * @return the number of frames that lanes can hold
+     */
+    int getHeldFramesCount() {
+        int count = getWindowFramesCount(mDefaultLane);
+        for (Lane lane : mLanes) {
+            count += lane.mQueueSize + 1 + getWindowFramesCount(lane);
+        }
+        return count;
+    }
+
+    private static int getWindowFramesCount(Lane lane) {
+        int count = 0;
+        for (FrameProcessor processor : lane.mProcessors) {
+            if (processor instanceof FrameWindowProcessor) {
+                count += ((FrameWindowProcessor) processor).getWindowSize();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Dispatches the frame to all lanes. This releases the caller reference,
+     * so the frame should not be used after this call.
+     *
+     * @param frame the new frame
+     */
+    void dispatch(@NonNull Frame frame) {
+        // Frame times come from the wall clock, which can jump. Throttle on a monotonic one.
+        dispatch(frame, System.nanoTime() / 1000000);
+    }
+
+    /* for tests */ void dispatch(@NonNull Frame frame, long time) {
+        if (!mDefaultLane.mProcessors.isEmpty()) {
+            mDefaultLane.offer(frame, time);
+        }
+        for (Lane lane : mLanes) {
+            lane.offer(frame, time);
+        }
+        // Release our own reference. Lanes that accepted the frame have retained it.
+        frame.release();
+    }
+
+    private Executor getLaneExecutor() {
+        if (mLaneExecutor == null) {
+            mLaneExecutor = createLaneExecutor();
+        }
+        return mLaneExecutor;
+    }
+
+    private static ExecutorService createLaneExecutor() {
+        final AtomicInteger count = new AtomicInteger(0);
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(@NonNull Runnable runnable) {
+                Thread thread = new Thread(runnable, "FrameProcessorLane-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * A lane holds a queue of frames and processes them serially in its executor.
+     * A single task is scheduled at a time, and it runs until the queue is empty.
+     */
+    static class Lane implements Runnable {
+
+        /* for tests */ final List<FrameProcessor> mProcessors = new CopyOnWriteArrayList<>();
+        private final Executor mExecutor;
+        private final FrameProcessorOptions.Backpressure mBackpressure;
+        private final int mQueueSize;
+        private final ArrayDeque<Frame> mQueue = new ArrayDeque<>();
+        private boolean mScheduled;
+
+        // Frame skipping
+        private long mPeriod = 0;
+        private int mInterval = 1;
+        private long mNextTime = 0;
+        private int mCount = 0;
+
+        Lane(Executor executor, FrameProcessorOptions.Backpressure backpressure, int queueSize) {
+            mExecutor = executor;
+            mBackpressure = backpressure;
+            mQueueSize = queueSize;
+        }
+
+        void setFrameRate(float maxFrameRate, int interval) {
+            mPeriod = maxFrameRate > 0 ? (long) (1000 / maxFrameRate) : 0;
+            mInterval = interval;
+        }
+
+        // Returns true if the processor does not need this frame.
+        // Skipping is scheduled on fixed time slots so that jitter does not lower the rate.
+        // The time is monotonic, in milliseconds.
+        private boolean shouldSkip(long time) {
+            if (mInterval > 1 && mCount++ % mInterval != 0) return true;
+            if (mPeriod > 0) {
+                // A slot this far ahead was scheduled on another clock, e.g. before a restart.
+                if (mNextTime - time > mPeriod) mNextTime = time;
+                if (time < mNextTime) return true;
+                mNextTime = time - mNextTime >= mPeriod ? time + mPeriod : mNextTime + mPeriod;
+            }
+            return false;
+        }
+
+        // Returns true if the frame was accepted.
+        boolean offer(Frame frame, long time) {
+            Frame dropped = null;
+            boolean schedule;
+            synchronized (this) {
+                if (shouldSkip(time)) return false;
+                if (mQueue.size() >= mQueueSize) {
+                    if (mBackpressure == FrameProcessorOptions.Backpressure.DROP_NEWEST) return false;
+                    dropped = mQueue.poll();
+                }
+                frame.retain();
+                mQueue.offer(frame);
+                schedule = !mScheduled;
+                mScheduled = true;
+            }
+            if (dropped != null) dropped.release();
+            if (schedule) mExecutor.execute(this);
+            return true;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Frame frame;
+                synchronized (this) {
+                    frame = mQueue.poll();
+                    if (frame == null) {
+                        mScheduled = false;
+                        return;
+                    }
+                }
+                try {
+                    for (FrameProcessor processor : mProcessors) {
+                        // A failing processor should not stop the lane, nor the other processors.
+                        try {
+                            processor.process(frame);
+                        } catch (RuntimeException e) {
+                            LOG.e("run:", "FrameProcessor failed.", e);
+                        }
+                    }
+                } finally {
+                    frame.release();
+                }
+            }
+        }
+
+        // Releases queued frames. A frame being processed will be released when done.
+        void clear() {
+            while (true) {
+                Frame frame;
+                synchronized (this) {
+                    frame = mQueue.poll();
+                }
+                if (frame == null) return;
+                frame.release();
+            }
+        }
+    }
+}
@@ -1,7 +1,9 @@
 package com.otaliastudios.cameraview;
 
 
-import java.util.concurrent.LinkedBlockingQueue;
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class manages the allocation of buffers and Frame objects.
@@ -12,41 +14,176 @@ import java.util.concurrent.LinkedBlockingQueue;
  * Whether this does make sense, it depends on how slow the frame processors are.
  * If they are very slow, it is possible that some frames will be skipped.
  *
+ * - Adaptive pool size:
+ *     If {@link #setPoolSizeBounds(int, int)} is called with min < max, mPoolSize changes while
+ *     previewing. We measure how long frames are held and how often they come, and keep enough
+ *     buffers for the camera to always have one to fill. If the camera runs out of buffers, which
+ *     means it is dropping frames, we grow immediately. If buffers are not needed anymore, we
+ *     shrink slowly, to avoid oscillating.
+ * - Pyramid buffer pool:
+ *     {@link Frame#getYPlane(int)} stores downsampled levels in arrays from another
+ *     {@link BufferPool}, and frames give them back when released.
+ * - Frame history:
+ *     If {@link #setHistorySize(int)} is called, we retain the last frames in a ring, so that
+ *     {@link #getHistoryFrame(long)} can return a frame from the past, e.g. for zero-shutter-lag
+ *     snapshots. Frames are not copied, so their buffers are not available to the camera
+ *     until they leave the history: the pool size should account for them.
+ *
  * - byte[] buffer pool:
  *     this is not kept here, because Camera1 internals already have one that we can't control, but
  *     it should be OK. The only thing we do is allocate mPoolSize buffers when requested.
  * - Frame pool:
- *     We keep a list of mPoolSize recycled instances, to be reused when a new buffer is available.
+ *     We keep a ring of mPoolSize recycled instances, to be reused when a new buffer is available.
+ *     The ring is a pre-allocated {@link RingQueue}, so that {@link #getFrame(byte[], long, int, Size, int)}
+ *     and {@link #onFrameReleased(Frame, byte[])} neither allocate nor lock in steady state.
+ * - Frozen buffer pool:
+ *     {@link Frame#freeze()} takes its copy from a {@link BufferPool}, and frozen frames give
+ *     the array back when released. The pool has a byte budget, and we keep track of how many
+ *     frozen frames are still around.
  */
 class FrameManager {
 
+    private final static String TAG = FrameManager.class.getSimpleName();
+    private final static CameraLogger LOG = CameraLogger.create(TAG);
+
     interface BufferCallback {
         void onBufferAvailable(byte[] buffer);
     }
 
-    private int mPoolSize;
-    private int mBufferSize;
+    final static int DEFAULT_FROZEN_BUDGET = 8 * 1024 * 1024;
+    final static int DEFAULT_PYRAMID_BUDGET = 4 * 1024 * 1024;
+
+    // How many frames in a row must ask for a smaller pool before we shrink it.
+    final static int SHRINK_DELAY = 60;
+    // Weight of old values in the latency and interval averages, as a power of two.
+    private final static int AVERAGE_SHIFT = 3;
+
+    private volatile int mPoolSize;
+    private volatile int mMinPoolSize;
+    private volatile int mMaxPoolSize;
+    private volatile int mBufferSize;
+    private AtomicInteger mBufferCount = new AtomicInteger(0);
     private BufferCallback mCallback;
-    private LinkedBlockingQueue<Frame> mQueue;
+    private volatile RingQueue<Frame> mQueue;
+    private BufferPool mFrozenPool;
+    private AtomicInteger mFrozenCount = new AtomicInteger(0);
+    private BufferPool mPyramidPool;
+
+    // Adaptive pool size
+    private AtomicInteger mHeldCount = new AtomicInteger(0);
+    private volatile long mFrameLatency = 0; // Nanoseconds between getFrame and release
+    private long mFrameInterval = 0; // Nanoseconds between two getFrame calls
+    private long mLastFrameTime = 0;
+    private int mShrinkCount = 0;
+
+    // Frame history
+    private final Object mHistoryLock = new Object();
+    private volatile Frame[] mHistory = new Frame[0];
+    private int mHistoryHead = 0; // Index of the oldest frame
+    private int mHistoryCount = 0;
 
     FrameManager(int poolSize, BufferCallback callback) {
         mPoolSize = poolSize;
+        mMinPoolSize = poolSize;
+        mMaxPoolSize = poolSize;
         mCallback = callback;
-        mQueue = new LinkedBlockingQueue<>(mPoolSize);
+        mQueue = new RingQueue<>(poolSize);
         mBufferSize = -1;
+        mFrozenPool = new BufferPool(DEFAULT_FROZEN_BUDGET);
+        mPyramidPool = new BufferPool(DEFAULT_PYRAMID_BUDGET);
     }
 
-    void release() {
-        for (Frame frame : mQueue) {
+    synchronized void release() {
+        // Invalidate the buffer size first, so that history buffers are not given back.
+        mBufferSize = -1;
+        clearHistory();
+        Frame frame;
+        while ((frame = mQueue.poll()) != null) {
             frame.releaseManager();
             frame.release();
         }
-        mQueue.clear();
-        mBufferSize = -1;
+        mBufferCount.set(0);
+        mFrozenPool.clear();
+        mPyramidPool.clear();
+    }
+
+    /**
+     * Returns an array for a frozen frame copy, taken from the frozen pool if possible.
+     * The frozen frame must give it back with {@link #onFrozenFrameReleased(Frame, byte[])}.
+     *
+     * @param length the array length
+     * @return an array, with undefined contents
+     */
+    byte[] obtainFrozenBuffer(int length) {
+        mFrozenCount.incrementAndGet();
+        return mFrozenPool.obtain(length);
+    }
+
+    /**
+     * Called by frozen frames when their last holder has released them.
+     * The frame is not recycled, but the buffer goes back to the frozen pool.
+     *
+     * @param frame the released frame
+     * @param buffer the buffer that the frame was holding
+     */
+    void onFrozenFrameReleased(Frame frame, byte[] buffer) {
+        frame.releaseManager();
+        mFrozenCount.decrementAndGet();
+        mFrozenPool.recycle(buffer);
+    }
+
+    /**
+     * Returns the number of frozen frames that were not released yet.
+     *
+     * @return the frozen frames count
+     */
+    int getFrozenFrameCount() {
+        return mFrozenCount.get();
+    }
+
+    /**
+     * Sets how many bytes can be kept in the frozen pool, waiting to be reused.
+     *
+     * @param budget the budget in bytes
+     */
+    void setFrozenBudget(int budget) {
+        mFrozenPool.setBudget(budget);
+    }
+
+    int getFrozenBudget() {
+        return mFrozenPool.getBudget();
     }
 
-    void onFrameReleased(Frame frame) {
-        byte[] buffer = frame.getData();
+    /**
+     * Returns an array for a level of {@link Frame#getYPlane(int)}, taken from the pool if possible.
+     * The frame must give it back with {@link #recyclePyramidBuffer(byte[])}.
+     *
+     * @param length the array length
+     * @return an array, with undefined contents
+     */
+    byte[] obtainPyramidBuffer(int length) {
+        return mPyramidPool.obtain(length);
+    }
+
+    void recyclePyramidBuffer(byte[] buffer) {
+        mPyramidPool.recycle(buffer);
+    }
+
+    /**
+     * Called by frames when their last holder has released them.
+     * The frame is recycled, and the buffer is given back to the callback if still valid.
+     *
+     * @param frame the released frame
+     * @param buffer the buffer that the frame was holding
+     */
+    void onFrameReleased(Frame frame, byte[] buffer) {
+        // Read this before recycling, as the frame might be reused right after.
+        long dispatchTime = frame.mDispatchTime;
+        if (dispatchTime > 0) {
+            // Concurrent releases might lose some samples. That's fine for an average.
+            mFrameLatency = average(mFrameLatency, System.nanoTime() - dispatchTime);
+        }
+        mHeldCount.decrementAndGet();
         boolean willRecycle = mQueue.offer(frame);
         if (!willRecycle) {
             frame.releaseManager();
@@ -54,12 +191,83 @@ class FrameManager {
         if (buffer != null && mCallback != null) {
             int currSize = buffer.length;
             int reqSize = mBufferSize;
-            if (currSize == reqSize) {
+            if (currSize == reqSize && !shouldDropBuffer()) {
                 mCallback.onBufferAvailable(buffer);
             }
         }
     }
 
+    // If the pool was shrunk, released buffers are not given back until we are in range.
+    private boolean shouldDropBuffer() {
+        while (true) {
+            int count = mBufferCount.get();
+            if (count <= mPoolSize) return false;
+            if (mBufferCount.compareAndSet(count, count - 1)) return true;
+        }
+    }
+
+    /**
+     * Changes the number of buffers and Frames that are kept alive.
+     * If buffers were already allocated, a bigger size will allocate the missing ones
+     * immediately, while a smaller size will drop buffers as they are released.
+     *
+     * This is useful when frames are held for longer than usual, e.g. by many
+     * processors working in parallel. This disables the adaptive pool size.
+     *
+     * @param poolSize the new pool size
+     */
+    void setPoolSize(int poolSize) {
+        setPoolSizeBounds(poolSize, poolSize);
+    }
+
+    /**
+     * Lets the pool size change between the given bounds, depending on how long
+     * frames are held. If min and max are equal, the pool size is fixed.
+     *
+     * @param minPoolSize the minimum pool size
+     * @param maxPoolSize the maximum pool size
+     */
+    synchronized void setPoolSizeBounds(int minPoolSize, int maxPoolSize) {
+        mMinPoolSize = minPoolSize;
+        mMaxPoolSize = maxPoolSize;
+        mShrinkCount = 0;
+        resize(Math.max(minPoolSize, Math.min(maxPoolSize, mPoolSize)));
+    }
+
+    int getMinPoolSize() {
+        return mMinPoolSize;
+    }
+
+    int getMaxPoolSize() {
+        return mMaxPoolSize;
+    }
+
+    private synchronized void resize(int poolSize) {
+        if (poolSize != mPoolSize) {
+            LOG.i("resize:", "from", mPoolSize, "to", poolSize);
+        }
+        mPoolSize = poolSize;
+        if (mQueue.capacity() < poolSize) {
+            // Move to a bigger ring. Frames released in the meanwhile might get lost, that's fine.
+            RingQueue<Frame> queue = new RingQueue<>(poolSize);
+            Frame frame;
+            while ((frame = mQueue.poll()) != null) {
+                queue.offer(frame);
+            }
+            mQueue = queue;
+        }
+        if (mBufferSize > 0) {
+            while (mBufferCount.get() < mPoolSize) {
+                mBufferCount.incrementAndGet();
+                mCallback.onBufferAvailable(new byte[mBufferSize]);
+            }
+        }
+    }
+
+    int getPoolSize() {
+        return mPoolSize;
+    }
+
     /**
      * Returns a new Frame for the given data. This must be called
      * - after {@link #allocate(int, Size)}, which sets the buffer size
@@ -75,11 +283,181 @@ class FrameManager {
         Frame frame = mQueue.poll();
         if (frame == null) frame = new Frame(this);
         frame.set(data, time, rotation, previewSize, previewFormat);
+        return onFrameDispatched(frame);
+    }
+
+    /**
+     * Same as {@link #getFrame(byte[], long, int, Size, int)}, for data that has the given
+     * layout. This lets callers describe strided or three-plane data, like the
+     * {@link android.graphics.ImageFormat#YUV_420_888} planes of a Camera2 image.
+     *
+     * @return a new frame
+     */
+    Frame getFrame(byte[] data, long time, int rotation, Size previewSize, @NonNull YuvLayout layout) {
+        Frame frame = mQueue.poll();
+        if (frame == null) frame = new Frame(this);
+        frame.set(data, time, rotation, previewSize, layout);
+        return onFrameDispatched(frame);
+    }
+
+    private Frame onFrameDispatched(Frame frame) {
+        int held = mHeldCount.incrementAndGet();
+        if (mMinPoolSize < mMaxPoolSize) {
+            long now = System.nanoTime();
+            frame.mDispatchTime = now;
+            adapt(now, held);
+        } else {
+            frame.mDispatchTime = 0;
+        }
+        if (mHistory.length > 0) addToHistory(frame);
         return frame;
     }
 
-    int allocate(int bitsPerPixel, Size previewSize) {
-        mBufferSize = getBufferSize(bitsPerPixel, previewSize);
+    /**
+     * Sets how many of the latest frames should be retained, so that they can be
+     * returned by {@link #getHistoryFrame(long)}. Defaults to 0, which means no history.
+     *
+     * @param size the history size
+     */
+    void setHistorySize(int size) {
+        Frame[] evicted;
+        synchronized (mHistoryLock) {
+            if (size == mHistory.length) return;
+            // Keep the latest frames that fit in the new history.
+            int keep = Math.min(size, mHistoryCount);
+            evicted = new Frame[mHistoryCount - keep];
+            Frame[] history = new Frame[size];
+            for (int i = 0; i < mHistoryCount; i++) {
+                Frame frame = mHistory[(mHistoryHead + i) % mHistory.length];
+                int index = i - evicted.length;
+                if (index < 0) {
+                    evicted[i] = frame;
+                } else {
+                    history[index] = frame;
+                }
+            }
+            mHistory = history;
+            mHistoryHead = 0;
+            mHistoryCount = keep;
+        }
+        for (Frame frame : evicted) {
+            frame.release();
+        }
+    }
+
+    int getHistorySize() {
+        return mHistory.length;
+    }
+
+    // Retains the frame in the history, and releases the oldest one if full.
+    private void addToHistory(Frame frame) {
+        Frame evicted = null;
+        synchronized (mHistoryLock) {
+            Frame[] history = mHistory;
+            if (history.length == 0) return;
+            int tail = (mHistoryHead + mHistoryCount) % history.length;
+            if (mHistoryCount == history.length) {
+                evicted = history[tail];
+                mHistoryHead = (mHistoryHead + 1) % history.length;
+            } else {
+                mHistoryCount++;
+            }
+            history[tail] = frame.retain();
+        }
+        if (evicted != null) evicted.release();
+    }
+
+    /**
+     * Returns the frame in the history whose time is closest to the given time,
+     * or null if the history is empty. The frame is retained for the caller,
+     * who must call {@link Frame#release()} when done.
+     *
+     * @param time the desired time, in the {@link Frame#getTime()} reference
+     * @return a retained frame, or null
+     */
+    Frame getHistoryFrame(long time) {
+        synchronized (mHistoryLock) {
+            Frame best = null;
+            for (int i = 0; i < mHistoryCount; i++) {
+                Frame frame = mHistory[(mHistoryHead + i) % mHistory.length];
+                if (best == null || Math.abs(frame.getTime() - time) < Math.abs(best.getTime() - time)) {
+                    best = frame;
+                }
+            }
+            return best == null ? null : best.retain();
+        }
+    }
+
+    private void clearHistory() {
+        Frame[] history;
+        int head, count;
+        synchronized (mHistoryLock) {
+            history = mHistory;
+            head = mHistoryHead;
+            count = mHistoryCount;
+            mHistory = new Frame[history.length];
+            mHistoryHead = 0;
+            mHistoryCount = 0;
+        }
+        for (int i = 0; i < count; i++) {
+            history[(head + i) % history.length].release();
+        }
+    }
+
+    // Called for each new frame, from the camera thread, when the pool size is adaptive.
+    private void adapt(long now, int held) {
+        if (mLastFrameTime > 0) {
+            mFrameInterval = average(mFrameInterval, now - mLastFrameTime);
+        }
+        mLastFrameTime = now;
+        int poolSize = mPoolSize;
+
+        // If we are holding all buffers, the camera has none to fill and is dropping frames.
+        if (held >= mBufferCount.get()) {
+            mShrinkCount = 0;
+            if (poolSize < mMaxPoolSize) resize(poolSize + 1);
+            return;
+        }
+
+        // Otherwise, we need a buffer for each frame held on average, plus one for the camera.
+        long interval = mFrameInterval;
+        if (interval <= 0) return;
+        int needed = (int) ((mFrameLatency + interval - 1) / interval) + 1;
+        if (needed > poolSize && poolSize < mMaxPoolSize) {
+            mShrinkCount = 0;
+            resize(Math.min(needed, mMaxPoolSize));
+        } else if (needed < poolSize && poolSize > mMinPoolSize) {
+            // Wait a bit, so that we don't oscillate.
+            if (++mShrinkCount >= SHRINK_DELAY) {
+                mShrinkCount = 0;
+                resize(poolSize - 1);
+            }
+        } else {
+            mShrinkCount = 0;
+        }
+    }
+
+    private static long average(long average, long value) {
+        if (average == 0) return value;
+        return average + ((value - average) >> AVERAGE_SHIFT);
+    }
+
+    synchronized int allocate(int bitsPerPixel, Size previewSize) {
+        return allocateBuffers(getBufferSize(bitsPerPixel, previewSize));
+    }
+
+    // Unlike bits per pixel, the layout accounts for padding, e.g. the YV12 stride alignment.
+    synchronized int allocate(@NonNull YuvLayout layout) {
+        return allocateBuffers(layout.getBufferSize());
+    }
+
+    private int allocateBuffers(int bufferSize) {
+        mBufferSize = bufferSize;
+        mBufferCount.set(mPoolSize);
+        // Fill the ring so that no Frame is instantiated while previewing.
+        for (int i = mQueue.size(); i < mPoolSize; i++) {
+            mQueue.offer(new Frame(this));
+        }
         for (int i = 0; i < mPoolSize; i++) {
             mCallback.onBufferAvailable(new byte[mBufferSize]);
         }
@@ -0,0 +1,156 @@
+package com.otaliastudios.cameraview;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A view over one plane of a {@link Frame}, e.g. the Y plane or the interleaved VU plane
+ * of a NV21 frame. The view indexes into the frame data array, so no data is copied.
+ *
+ * Each pixel has {@link #getPixelStride()} samples, and rows are {@link #getRowStride()}
+ * bytes apart. Values are returned as unsigned integers in the 0-255 range.
+ *
+ * The view is valid as long as the frame is: please see {@link Frame#release()}.
+ */
+public final class FramePlane {
+
+    private byte[] mData;
+    private int mOffset;
+    private int mWidth;
+    private int mHeight;
+    private int mRowStride;
+    private int mPixelStride;
+
+    FramePlane() {}
+
+    FramePlane(byte[] data, int offset, int width, int height, int rowStride, int pixelStride) {
+        set(data, offset, width, height, rowStride, pixelStride);
+    }
+
+    void set(byte[] data, int offset, int width, int height, int rowStride, int pixelStride) {
+        mData = data;
+        mOffset = offset;
+        mWidth = width;
+        mHeight = height;
+        mRowStride = rowStride;
+        mPixelStride = pixelStride;
+    }
+
+    /**
+     * Returns the array that backs this plane, which is the frame data.
+     * Please use {@link #getIndex(int, int)} to find pixels in it.
+     *
+     * @return the data array
+     */
+    @NonNull
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * Returns the index of the first pixel in the data array.
+     *
+     * @return the offset
+     */
+    public int getOffset() {
+        return mOffset;
+    }
+
+    /**
+     * Returns the plane width, in pixels.
+     *
+     * @return the width
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the plane height, in pixels.
+     *
+     * @return the height
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the distance between two rows, in bytes.
+     *
+     * @return the row stride
+     */
+    public int getRowStride() {
+        return mRowStride;
+    }
+
+    /**
+     * Returns the distance between two pixels of a row, in bytes.
+     * This is the number of samples for each pixel, e.g. 2 for the interleaved VU plane.
+     *
+     * @return the pixel stride
+     */
+    public int getPixelStride() {
+        return mPixelStride;
+    }
+
+    /**
+     * Returns the index of the first sample of the given pixel, in the data array.
+     *
+     * @param x the pixel column, between 0 and {@link #getWidth()} - 1
+     * @param y the pixel row, between 0 and {@link #getHeight()} - 1
+     * @return the index
+     */
+    public int getIndex(int x, int y) {
+        if (x < 0 || x >= mWidth || y < 0 || y >= mHeight) {
+            throw new IndexOutOfBoundsException("Pixel (" + x + ", " + y + ") is out of a "
+                    + mWidth + "x" + mHeight + " plane.");
+        }
+        return mOffset + y * mRowStride + x * mPixelStride;
+    }
+
+    /**
+     * Returns the first sample of the given pixel, e.g. the luma in the Y plane,
+     * or the V value in the VU plane.
+     *
+     * @param x the pixel column
+     * @param y the pixel row
+     * @return the sample value, in the 0-255 range
+     */
+    public int get(int x, int y) {
+        return mData[getIndex(x, y)] & 0xFF;
+    }
+
+    /**
+     * Returns a sample of the given pixel, e.g. 0 for V and 1 for U in the VU plane.
+     *
+     * @param x the pixel column
+     * @param y the pixel row
+     * @param sample the sample, between 0 and {@link #getPixelStride()} - 1
+     * @return the sample value, in the 0-255 range
+     */
+    public int get(int x, int y, int sample) {
+        if (sample < 0 || sample >= mPixelStride) {
+            throw new IndexOutOfBoundsException("Sample " + sample + " is out of pixel stride " + mPixelStride);
+        }
+        return mData[getIndex(x, y) + sample] & 0xFF;
+    }
+
+    /**
+     * Returns a view over a region of this plane. The region uses the same data array,
+     * so no data is copied, and it has the same strides.
+     *
+     * @param left the left coordinate of the region
+     * @param top the top coordinate of the region
+     * @param width the region width
+     * @param height the region height
+     * @return a view over the region
+     */
+    @NonNull
+    public FramePlane crop(int left, int top, int width, int height) {
+        if (left < 0 || top < 0 || width <= 0 || height <= 0 || left + width > mWidth || top + height > mHeight) {
+            throw new IndexOutOfBoundsException("Region (" + left + ", " + top + ", " + width + ", "
+                    + height + ") is out of a " + mWidth + "x" + mHeight + " plane.");
+        }
+        int offset = mOffset + top * mRowStride + left * mPixelStride;
+        return new FramePlane(mData, offset, width, height, mRowStride, mPixelStride);
+    }
+}
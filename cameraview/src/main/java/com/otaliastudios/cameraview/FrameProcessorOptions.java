@@ -0,0 +1,149 @@
+package com.otaliastudios.cameraview;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Options for a {@link FrameProcessor}, to be passed to
+ * {@link CameraView#addFrameProcessor(FrameProcessor, FrameProcessorOptions)}.
+ *
+ * A processor added with options runs on its own lane, in parallel with other processors,
+ * so that a slow processor does not slow down the others.
+ * Each lane keeps a small queue of frames waiting to be processed: what happens when this
+ * queue is full is controlled by {@link #setBackpressure(Backpressure)}.
+ *
+ * Processors that do not need all frames can use {@link #setMaxFrameRate(float)} or
+ * {@link #setFrameInterval(int)}: unneeded frames are skipped before reaching the lane,
+ * so they are never queued nor retained.
+ */
+public class FrameProcessorOptions {
+
+    /**
+     * Defines what happens when a new frame is available,
+     * but the lane queue is full because the processor is busy.
+     */
+    public enum Backpressure {
+
+        /**
+         * The new frame is dropped. The processor will receive the
+         * frames that were already queued.
+         */
+        DROP_NEWEST,
+
+        /**
+         * The oldest queued frame is dropped to make room for the new frame.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Any queued frame is dropped, so that the processor always receives the latest frame
+         * as soon as it is done. This ignores the queue size, which is always 1.
+         */
+        KEEP_LATEST
+    }
+
+    final static Backpressure DEFAULT_BACKPRESSURE = Backpressure.KEEP_LATEST;
+    final static int DEFAULT_QUEUE_SIZE = 1;
+    final static float DEFAULT_MAX_FRAME_RATE = 0;
+    final static int DEFAULT_FRAME_INTERVAL = 1;
+
+    private Backpressure mBackpressure = DEFAULT_BACKPRESSURE;
+    private int mQueueSize = DEFAULT_QUEUE_SIZE;
+    private float mMaxFrameRate = DEFAULT_MAX_FRAME_RATE;
+    private int mFrameInterval = DEFAULT_FRAME_INTERVAL;
+
+    public FrameProcessorOptions() {}
+
+    /**
+     * Sets the policy to be used when the processor is busy and the lane queue is full.
+     * Defaults to {@link Backpressure#KEEP_LATEST}.
+     *
+     * @param backpressure the desired policy
+     */
+    public void setBackpressure(@NonNull Backpressure backpressure) {
+        mBackpressure = backpressure;
+    }
+
+    /**
+     * Returns the policy to be used when the lane queue is full.
+     *
+     * @see #setBackpressure(Backpressure)
+     * @return the backpressure policy
+     */
+    @NonNull
+    public Backpressure getBackpressure() {
+        return mBackpressure;
+    }
+
+    /**
+     * Sets how many frames can wait in the lane queue while the processor is busy.
+     * Please note that waiting frames are not given back to the camera, so big
+     * values will increase the memory footprint. Defaults to 1.
+     *
+     * @param queueSize a positive integer
+     */
+    public void setQueueSize(int queueSize) {
+        if (queueSize <= 0) {
+            throw new IllegalArgumentException("Queue size should be > 0");
+        }
+        mQueueSize = queueSize;
+    }
+
+    /**
+     * Returns how many frames can wait in the lane queue.
+     * This is always 1 for {@link Backpressure#KEEP_LATEST}.
+     *
+     * @see #setQueueSize(int)
+     * @return the queue size
+     */
+    public int getQueueSize() {
+        return mBackpressure == Backpressure.KEEP_LATEST ? 1 : mQueueSize;
+    }
+
+    /**
+     * Sets the maximum number of frames per second that this processor should receive.
+     * Frames exceeding this rate are skipped. Defaults to 0, which means no limit.
+     *
+     * @param frameRate the maximum frame rate, or 0 for no limit
+     */
+    public void setMaxFrameRate(float frameRate) {
+        if (frameRate < 0) {
+            throw new IllegalArgumentException("Frame rate should be >= 0");
+        }
+        mMaxFrameRate = frameRate;
+    }
+
+    /**
+     * Returns the maximum number of frames per second that this processor should receive,
+     * or 0 if there is no limit.
+     *
+     * @see #setMaxFrameRate(float)
+     * @return the maximum frame rate
+     */
+    public float getMaxFrameRate() {
+        return mMaxFrameRate;
+    }
+
+    /**
+     * Sets the interval between frames that this processor should receive.
+     * For example, 3 means that the processor receives one frame every three frames
+     * in the preview stream. Defaults to 1, which means every frame.
+     *
+     * @param interval a positive integer
+     */
+    public void setFrameInterval(int interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Frame interval should be > 0");
+        }
+        mFrameInterval = interval;
+    }
+
+    /**
+     * Returns the interval between frames that this processor should receive.
+     *
+     * @see #setFrameInterval(int)
+     * @return the frame interval
+     */
+    public int getFrameInterval() {
+        return mFrameInterval;
+    }
+}
@@ -0,0 +1,93 @@
+package com.otaliastudios.cameraview;
+
+import android.support.annotation.NonNull;
+
+/**
+ * A sliding window of the last frames received by a {@link FrameWindowProcessor},
+ * from the oldest, at index 0, to the latest, at index {@link #size()} - 1.
+ *
+ * Frames are not copied: the window holds the preview buffers themselves, and releases
+ * each frame when it leaves the window. Frames in the window should not be released, but
+ * they can be retained with {@link Frame#retain()} if they are needed for longer.
+ *
+ * The window is only valid during {@link FrameWindowProcessor#process(FrameWindow)}.
+ */
+public class FrameWindow {
+
+    private final Frame[] mFrames;
+    private int mHead = 0; // Index of the oldest frame
+    private int mSize = 0;
+
+    FrameWindow(int capacity) {
+        mFrames = new Frame[capacity];
+    }
+
+    /**
+     * Returns the number of frames in the window. This is lower than {@link #capacity()}
+     * for the first frames.
+     *
+     * @return the window size
+     */
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns the maximum number of frames in the window.
+     *
+     * @return the window capacity
+     */
+    public int capacity() {
+        return mFrames.length;
+    }
+
+    /**
+     * Returns the frame at the given index, where 0 is the oldest frame.
+     *
+     * @param index a frame index, between 0 and {@link #size()} - 1
+     * @return the frame
+     */
+    @NonNull
+    public Frame get(int index) {
+        if (index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + mSize);
+        }
+        return mFrames[(mHead + index) % mFrames.length];
+    }
+
+    /**
+     * Returns the latest frame, that is, the one that was just received.
+     *
+     * @return the latest frame
+     */
+    @NonNull
+    public Frame getLatest() {
+        return get(mSize - 1);
+    }
+
+    // Adds a retained frame, and returns the frame that left the window, if any.
+    // The caller should release it.
+    Frame push(Frame frame) {
+        int tail = (mHead + mSize) % mFrames.length;
+        Frame evicted = null;
+        if (mSize == mFrames.length) {
+            evicted = mFrames[tail];
+            mHead = (mHead + 1) % mFrames.length;
+        } else {
+            mSize++;
+        }
+        mFrames[tail] = frame;
+        return evicted;
+    }
+
+    // Releases all frames.
+    void clear() {
+        for (int i = 0; i < mSize; i++) {
+            int index = (mHead + i) % mFrames.length;
+            mFrames[index].release();
+            mFrames[index] = null;
+        }
+        mHead = 0;
+        mSize = 0;
+    }
+}
@@ -0,0 +1,79 @@
+package com.otaliastudios.cameraview;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.WorkerThread;
+
+/**
+ * A {@link FrameProcessor} that receives, for each new frame, a {@link FrameWindow} holding
+ * the last frames, for example for motion estimation, denoising or stabilization.
+ *
+ * The window is backed by the preview buffers, so no frame is copied. The camera can not use
+ * these buffers while they are in the window, but {@link CameraView} adds buffers to make room
+ * for them. Please note that if the processor skips frames (e.g. when added with
+ * {@link FrameProcessorOptions}), the window holds the last frames that it received.
+ *
+ * Frames are released when they leave the window, and when the processor is removed.
+ */
+public abstract class FrameWindowProcessor implements FrameProcessor {
+
+    private final FrameWindow mWindow;
+    private boolean mActive = false;
+    private boolean mProcessing = false;
+
+    /**
+     * Creates a processor that will receive windows of up to the given number of frames.
+     *
+     * @param windowSize the window capacity, at least 1
+     */
+    public FrameWindowProcessor(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size should be > 0");
+        }
+        mWindow = new FrameWindow(windowSize);
+    }
+
+    /**
+     * Returns the maximum number of frames in the window.
+     *
+     * @return the window size
+     */
+    public final int getWindowSize() {
+        return mWindow.capacity();
+    }
+
+    @Override
+    public final void process(@NonNull Frame frame) {
+        Frame evicted;
+        synchronized (this) {
+            // We were removed, but a late frame came.
+            if (!mActive) return;
+            evicted = mWindow.push(frame.retain());
+            mProcessing = true;
+        }
+        if (evicted != null) evicted.release();
+        try {
+            process(mWindow);
+        } finally {
+            synchronized (this) {
+                mProcessing = false;
+                if (!mActive) mWindow.clear();
+            }
+        }
+    }
+
+    /**
+     * Processes the window, after the new frame was added at its end.
+     * Frames in the window hold the correct values until they leave the window.
+     *
+     * @param window the window, whose latest frame is the new frame
+     */
+    @WorkerThread
+    public abstract void process(@NonNull FrameWindow window);
+
+    // Called by FrameDispatcher when the processor is added or removed.
+    // When removed, frames are released as soon as we are not processing.
+    synchronized void setActive(boolean active) {
+        mActive = active;
+        if (!active && !mProcessing) mWindow.clear();
+    }
+}
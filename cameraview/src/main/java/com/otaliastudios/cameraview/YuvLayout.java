@@ -0,0 +1,270 @@
+package com.otaliastudios.cameraview;
+
+import android.graphics.ImageFormat;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+/**
+ * Describes where the Y, U and V planes of a 4:2:0 frame are, in its data array.
+ * Chroma planes have half the frame size, rounded up, and share the same strides.
+ *
+ * This covers {@link ImageFormat#NV21}, {@link ImageFormat#YV12}, NV12 and any
+ * {@link ImageFormat#YUV_420_888} layout, including the one of Camera2
+ * {@link android.media.Image} planes, once they are in a single array.
+ *
+ * Layouts are immutable, and can be shared by all frames with the same format and size.
+ */
+public final class YuvLayout {
+
+    private final int mFormat;
+    private final int mWidth;
+    private final int mHeight;
+    private final int mYOffset;
+    private final int mYRowStride;
+    private final int mUOffset;
+    private final int mVOffset;
+    private final int mChromaRowStride;
+    private final int mChromaPixelStride;
+
+    private YuvLayout(int format, int width, int height, int yOffset, int yRowStride,
+                      int uOffset, int vOffset, int chromaRowStride, int chromaPixelStride) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Size should be positive: " + width + "x" + height);
+        }
+        if (yOffset < 0 || uOffset < 0 || vOffset < 0 || yRowStride < width
+                || chromaPixelStride <= 0 || chromaRowStride < getChromaWidth(width) * chromaPixelStride) {
+            throw new IllegalArgumentException("Invalid offsets or strides.");
+        }
+        mFormat = format;
+        mWidth = width;
+        mHeight = height;
+        mYOffset = yOffset;
+        mYRowStride = yRowStride;
+        mUOffset = uOffset;
+        mVOffset = vOffset;
+        mChromaRowStride = chromaRowStride;
+        mChromaPixelStride = chromaPixelStride;
+    }
+
+    /**
+     * Returns the layout of a NV21 frame: the Y plane, followed by interleaved V and U samples.
+     * This is the default format of Camera1 preview frames.
+     *
+     * @param width the frame width
+     * @param height the frame height
+     * @return the layout
+     */
+    @NonNull
+    public static YuvLayout nv21(int width, int height) {
+        int ySize = width * height;
+        int rowStride = 2 * getChromaWidth(width);
+        return new YuvLayout(ImageFormat.NV21, width, height, 0, width, ySize + 1, ySize, rowStride, 2);
+    }
+
+    /**
+     * Returns the layout of a NV12 frame: the Y plane, followed by interleaved U and V samples.
+     * There is no {@link ImageFormat} constant for this, so the format is
+     * {@link ImageFormat#YUV_420_888}.
+     *
+     * @param width the frame width
+     * @param height the frame height
+     * @return the layout
+     */
+    @NonNull
+    public static YuvLayout nv12(int width, int height) {
+        int ySize = width * height;
+        int rowStride = 2 * getChromaWidth(width);
+        return new YuvLayout(ImageFormat.YUV_420_888, width, height, 0, width, ySize, ySize + 1, rowStride, 2);
+    }
+
+    /**
+     * Returns the layout of a YV12 frame: the Y plane, followed by the V plane and the U plane.
+     * Strides are aligned to 16 bytes, as documented in {@link ImageFormat#YV12}.
+     *
+     * @param width the frame width
+     * @param height the frame height
+     * @return the layout
+     */
+    @NonNull
+    public static YuvLayout yv12(int width, int height) {
+        int yStride = align(width, 16);
+        int uvStride = align(yStride / 2, 16);
+        int ySize = yStride * height;
+        int uvSize = uvStride * getChromaHeight(height);
+        return new YuvLayout(ImageFormat.YV12, width, height, 0, yStride, ySize + uvSize, ySize, uvStride, 1);
+    }
+
+    /**
+     * Returns a {@link ImageFormat#YUV_420_888} layout with the given offsets and strides.
+     * These can be read from the planes of a Camera2 {@link android.media.Image}.
+     *
+     * @param width the frame width
+     * @param height the frame height
+     * @param yOffset index of the first luma sample
+     * @param yRowStride distance between luma rows, in bytes
+     * @param uOffset index of the first U sample
+     * @param vOffset index of the first V sample
+     * @param chromaRowStride distance between chroma rows, in bytes
+     * @param chromaPixelStride distance between chroma samples of a row, in bytes
+     * @return the layout
+     */
+    @NonNull
+    public static YuvLayout yuv420(int width, int height, int yOffset, int yRowStride,
+                                   int uOffset, int vOffset, int chromaRowStride, int chromaPixelStride) {
+        return new YuvLayout(ImageFormat.YUV_420_888, width, height, yOffset, yRowStride,
+                uOffset, vOffset, chromaRowStride, chromaPixelStride);
+    }
+
+    /**
+     * Returns the layout for the given {@link ImageFormat}, if it is one of the
+     * supported single-array formats, or null otherwise.
+     *
+     * @param format the format, e.g. {@link ImageFormat#NV21} or {@link ImageFormat#YV12}
+     * @param width the frame width
+     * @param height the frame height
+     * @return the layout, or null
+     */
+    @Nullable
+    public static YuvLayout of(int format, int width, int height) {
+        switch (format) {
+            case ImageFormat.NV21: return nv21(width, height);
+            case ImageFormat.YV12: return yv12(width, height);
+            default: return null;
+        }
+    }
+
+    private static int align(int value, int alignment) {
+        return (value + alignment - 1) / alignment * alignment;
+    }
+
+    private static int getChromaWidth(int width) {
+        return (width + 1) / 2;
+    }
+
+    private static int getChromaHeight(int height) {
+        return (height + 1) / 2;
+    }
+
+    /**
+     * Returns the {@link ImageFormat} of this layout.
+     *
+     * @return the format
+     */
+    public int getFormat() {
+        return mFormat;
+    }
+
+    /**
+     * Returns the frame width, in pixels.
+     *
+     * @return the width
+     */
+    public int getWidth() {
+        return mWidth;
+    }
+
+    /**
+     * Returns the frame height, in pixels.
+     *
+     * @return the height
+     */
+    public int getHeight() {
+        return mHeight;
+    }
+
+    /**
+     * Returns the index of the first luma sample.
+     *
+     * @return the Y offset
+     */
+    public int getYOffset() {
+        return mYOffset;
+    }
+
+    /**
+     * Returns the distance between two luma rows, in bytes.
+     *
+     * @return the Y row stride
+     */
+    public int getYRowStride() {
+        return mYRowStride;
+    }
+
+    /**
+     * Returns the index of the first U sample.
+     *
+     * @return the U offset
+     */
+    public int getUOffset() {
+        return mUOffset;
+    }
+
+    /**
+     * Returns the index of the first V sample.
+     *
+     * @return the V offset
+     */
+    public int getVOffset() {
+        return mVOffset;
+    }
+
+    /**
+     * Returns the distance between two chroma rows, in bytes.
+     *
+     * @return the chroma row stride
+     */
+    public int getChromaRowStride() {
+        return mChromaRowStride;
+    }
+
+    /**
+     * Returns the distance between two chroma samples of a row, in bytes:
+     * 1 for planar layouts, 2 for interleaved ones.
+     *
+     * @return the chroma pixel stride
+     */
+    public int getChromaPixelStride() {
+        return mChromaPixelStride;
+    }
+
+    /**
+     * Returns the number of bytes that the frame data must have for this layout.
+     *
+     * @return the data size
+     */
+    public int getDataSize() {
+        int chromaHeight = getChromaHeight(mHeight);
+        int chromaWidth = getChromaWidth(mWidth);
+        int yEnd = mYOffset + (mHeight - 1) * mYRowStride + mWidth;
+        int chromaEnd = (chromaHeight - 1) * mChromaRowStride + (chromaWidth - 1) * mChromaPixelStride + 1;
+        return Math.max(yEnd, Math.max(mUOffset, mVOffset) + chromaEnd);
+    }
+
+    // The size of buffers to be filled by the camera, which also includes the padding
+    // of the last rows. This is what Android documents for YV12, for example.
+    int getBufferSize() {
+        int chromaHeight = getChromaHeight(mHeight);
+        int gap = Math.abs(mUOffset - mVOffset);
+        int interleaved = gap < mChromaPixelStride ? gap : 0;
+        int yEnd = mYOffset + mHeight * mYRowStride;
+        int chromaEnd = Math.max(mUOffset, mVOffset) - interleaved + chromaHeight * mChromaRowStride;
+        return Math.max(getDataSize(), Math.max(yEnd, chromaEnd));
+    }
+
+    // Whether this is exactly the NV21 layout, so that NV21 specific loops can be used.
+    boolean isNv21() {
+        return mYOffset == 0 && mYRowStride == mWidth
+                && mVOffset == mWidth * mHeight && mUOffset == mVOffset + 1
+                && mChromaPixelStride == 2 && mChromaRowStride == mWidth
+                && mWidth % 2 == 0 && mHeight % 2 == 0;
+    }
+
+    // Whether V and U samples are interleaved, in this order.
+    boolean isVuInterleaved() {
+        return mChromaPixelStride == 2 && mUOffset == mVOffset + 1;
+    }
+
+    boolean matches(int format, int width, int height) {
+        return mFormat == format && mWidth == width && mHeight == height;
+    }
+}
@@ -0,0 +1,321 @@
+package com.otaliastudios.cameraview;
+
+import android.support.annotation.NonNull;
+
+/**
+ * Converts YUV frames to ARGB pixels, as used by {@link android.graphics.Bitmap#setPixels}.
+ * This is much faster than compressing a {@link android.graphics.YuvImage} and decoding it back.
+ * Frames can have any {@link YuvLayout}, and NV21 ones take a faster path.
+ *
+ * The conversion uses the full range BT.601 coefficients of JFIF, which is what camera frames
+ * use, so colors match those of pictures compressed with {@link android.graphics.YuvImage}.
+ * It uses fixed-point lookup tables.
+ * It does not allocate: pixels are written into caller-supplied arrays, or into an array
+ * that is owned by the converter and reused by the next call.
+ *
+ * Rows can be split across multiple threads, that are owned by the converter and kept
+ * alive until {@link #release()} is called. Conversions are serialized, so a converter can
+ * be shared by multiple processors, but each processor might want its own.
+ */
+public class ArgbConverter {
+
+    private final static int SHIFT = 10;
+    private final static int HALF = 1 << (SHIFT - 1);
+    private final static int CLAMP_OFFSET = 384;
+
+    private final static int[] Y_TABLE = new int[256];
+    private final static int[] RV_TABLE = new int[256];
+    private final static int[] GV_TABLE = new int[256];
+    private final static int[] GU_TABLE = new int[256];
+    private final static int[] BU_TABLE = new int[256];
+    private final static int[] CLAMP_TABLE = new int[1024];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            // The rounding term is added to the luma, so we just shift at the end.
+            Y_TABLE[i] = (i << SHIFT) + HALF;
+            RV_TABLE[i] = Math.round(1.402f * (i - 128) * (1 << SHIFT));
+            GV_TABLE[i] = Math.round(-0.714136f * (i - 128) * (1 << SHIFT));
+            GU_TABLE[i] = Math.round(-0.344136f * (i - 128) * (1 << SHIFT));
+            BU_TABLE[i] = Math.round(1.772f * (i - 128) * (1 << SHIFT));
+        }
+        for (int i = 0; i < CLAMP_TABLE.length; i++) {
+            CLAMP_TABLE[i] = Math.max(0, Math.min(255, i - CLAMP_OFFSET));
+        }
+    }
+
+    private final Object mLock = new Object(); // Coordinates the workers
+    private final Worker[] mWorkers;
+    private int[] mOutput;
+    private YuvLayout mNv21Layout; // Reused by NV21 arrays of the same size.
+
+    // The current job, guarded by mLock.
+    private byte[] mJobData;
+    private int[] mJobOutput;
+    private YuvLayout mJobLayout;
+    private RuntimeException mJobError;
+    private int mGeneration = 0;
+    private int mPending = 0;
+    private boolean mReleased = false;
+
+    /**
+     * Creates a converter that works in the calling thread.
+     */
+    public ArgbConverter() {
+        this(1);
+    }
+
+    /**
+     * Creates a converter that splits rows across the given number of threads,
+     * including the calling thread.
+     *
+     * @param threads the number of threads, at least 1
+     */
+    public ArgbConverter(int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Threads should be > 0");
+        }
+        mWorkers = new Worker[threads - 1];
+        for (int i = 0; i < mWorkers.length; i++) {
+            mWorkers[i] = new Worker(i + 1);
+            mWorkers[i].start();
+        }
+    }
+
+    /**
+     * Converts the frame into the given array, which must have room for all frame pixels.
+     *
+     * @param frame a frame with a known {@link YuvLayout}
+     * @param output the ARGB output
+     */
+    public synchronized void convert(@NonNull Frame frame, @NonNull int[] output) {
+        YuvLayout layout = frame.getLayout();
+        if (layout == null) {
+            throw new IllegalArgumentException("Frame format is not supported: " + frame.getFormat());
+        }
+        convert(frame.getData(), layout, output);
+    }
+
+    /**
+     * Converts the frame into an array owned by this converter. The array is reused,
+     * and overwritten, by the next call to this method.
+     *
+     * @param frame a frame with a known {@link YuvLayout}
+     * @return the ARGB output
+     */
+    @NonNull
+    public synchronized int[] convert(@NonNull Frame frame) {
+        int length = frame.getSize().getWidth() * frame.getSize().getHeight();
+        if (mOutput == null || mOutput.length != length) mOutput = new int[length];
+        convert(frame, mOutput);
+        return mOutput;
+    }
+
+    /**
+     * Converts a NV21 array into the given array, which must have room for all pixels.
+     *
+     * @param nv21 the NV21 data
+     * @param width the image width, an even number
+     * @param height the image height, an even number
+     * @param output the ARGB output
+     */
+    public synchronized void convert(@NonNull byte[] nv21, int width, int height, @NonNull int[] output) {
+        checkSize(width, height);
+        YuvLayout layout = mNv21Layout;
+        if (layout == null || layout.getWidth() != width || layout.getHeight() != height) {
+            layout = YuvLayout.nv21(width, height);
+            mNv21Layout = layout;
+        }
+        convert(nv21, layout, output);
+    }
+
+    /**
+     * Converts an array with the given layout into the given array,
+     * which must have room for all pixels.
+     *
+     * @param data the YUV data
+     * @param layout the data layout, whose width and height must be even
+     * @param output the ARGB output
+     */
+    public synchronized void convert(@NonNull byte[] data, @NonNull YuvLayout layout, @NonNull int[] output) {
+        int width = layout.getWidth();
+        int height = layout.getHeight();
+        checkSize(width, height);
+        if (data.length < layout.getDataSize() || output.length < width * height) {
+            throw new IllegalArgumentException("Arrays are too small for a " + width + "x" + height + " image.");
+        }
+        synchronized (mLock) {
+            if (mReleased) {
+                throw new IllegalStateException("Converter was released.");
+            }
+            if (mWorkers.length == 0) {
+                convertRows(data, layout, output, 0, height);
+                return;
+            }
+            mJobData = data;
+            mJobOutput = output;
+            mJobLayout = layout;
+            mPending = mWorkers.length;
+            mGeneration++;
+            mLock.notifyAll();
+        }
+
+        // Do our share, then wait for the others, even if we failed: they are using the arrays.
+        RuntimeException error = null;
+        try {
+            convertSlice(data, layout, output, 0);
+        } catch (RuntimeException e) {
+            error = e;
+        }
+        boolean interrupted = false;
+        synchronized (mLock) {
+            while (mPending > 0) {
+                try {
+                    mLock.wait();
+                } catch (InterruptedException e) {
+                    // Workers are using the output, so we must wait anyway.
+                    interrupted = true;
+                }
+            }
+            if (error == null) error = mJobError;
+            mJobData = null;
+            mJobOutput = null;
+            mJobLayout = null;
+            mJobError = null;
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+        if (error != null) throw error;
+    }
+
+    /**
+     * Stops the threads used by this converter. After this call, the converter can not be used.
+     */
+    public void release() {
+        synchronized (mLock) {
+            mReleased = true;
+            mLock.notifyAll();
+        }
+    }
+
+    private static void checkSize(int width, int height) {
+        if (width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("Size should be positive and even: " + width + "x" + height);
+        }
+    }
+
+    // Converts the rows assigned to the given slice. Slices hold an even number of rows.
+    private void convertSlice(byte[] data, YuvLayout layout, int[] output, int slice) {
+        int slices = mWorkers.length + 1;
+        int pairs = layout.getHeight() / 2;
+        int fromRow = 2 * (pairs * slice / slices);
+        int toRow = 2 * (pairs * (slice + 1) / slices);
+        convertRows(data, layout, output, fromRow, toRow);
+    }
+
+    private static void convertRows(byte[] data, YuvLayout layout, int[] output, int fromRow, int toRow) {
+        if (layout.isNv21()) {
+            convertRows(data, layout.getWidth(), layout.getHeight(), output, fromRow, toRow);
+        } else {
+            convertLayoutRows(data, layout, output, fromRow, toRow);
+        }
+    }
+
+    /* for tests */ static void convertRows(byte[] nv21, int width, int height, int[] output, int fromRow, int toRow) {
+        final int frameSize = width * height;
+        for (int row = fromRow; row < toRow; row++) {
+            int index = row * width;
+            int chroma = frameSize + (row >> 1) * width;
+            final int end = index + width;
+            while (index < end) {
+                final int v = nv21[chroma++] & 0xFF;
+                final int u = nv21[chroma++] & 0xFF;
+                final int r = RV_TABLE[v];
+                final int g = GV_TABLE[v] + GU_TABLE[u];
+                final int b = BU_TABLE[u];
+                int y = Y_TABLE[nv21[index] & 0xFF];
+                output[index++] = pixel(y, r, g, b);
+                y = Y_TABLE[nv21[index] & 0xFF];
+                output[index++] = pixel(y, r, g, b);
+            }
+        }
+    }
+
+    // Same as convertRows, but reads planes through the layout offsets and strides.
+    /* for tests */ static void convertLayoutRows(byte[] data, YuvLayout layout, int[] output, int fromRow, int toRow) {
+        final int width = layout.getWidth();
+        final int yRowStride = layout.getYRowStride();
+        final int chromaRowStride = layout.getChromaRowStride();
+        final int chromaPixelStride = layout.getChromaPixelStride();
+        final int uToV = layout.getVOffset() - layout.getUOffset();
+        for (int row = fromRow; row < toRow; row++) {
+            int index = row * width;
+            int luma = layout.getYOffset() + row * yRowStride;
+            int chroma = layout.getUOffset() + (row >> 1) * chromaRowStride;
+            final int end = index + width;
+            while (index < end) {
+                final int u = data[chroma] & 0xFF;
+                final int v = data[chroma + uToV] & 0xFF;
+                chroma += chromaPixelStride;
+                final int r = RV_TABLE[v];
+                final int g = GV_TABLE[v] + GU_TABLE[u];
+                final int b = BU_TABLE[u];
+                int y = Y_TABLE[data[luma++] & 0xFF];
+                output[index++] = pixel(y, r, g, b);
+                y = Y_TABLE[data[luma++] & 0xFF];
+                output[index++] = pixel(y, r, g, b);
+            }
+        }
+    }
+
+    private static int pixel(int y, int r, int g, int b) {
+        return 0xFF000000
+                | (CLAMP_TABLE[((y + r) >> SHIFT) + CLAMP_OFFSET] << 16)
+                | (CLAMP_TABLE[((y + g) >> SHIFT) + CLAMP_OFFSET] << 8)
+                | CLAMP_TABLE[((y + b) >> SHIFT) + CLAMP_OFFSET];
+    }
+
+    private class Worker extends Thread {
+
+        private final int mSlice;
+
+        Worker(int slice) {
+            super("ArgbConverter-" + slice);
+            mSlice = slice;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            int generation = 0;
+            while (true) {
+                byte[] data;
+                int[] output;
+                YuvLayout layout;
+                synchronized (mLock) {
+                    while (mGeneration == generation && !mReleased) {
+                        try {
+                            mLock.wait();
+                        } catch (InterruptedException ignore) {}
+                    }
+                    if (mReleased) return;
+                    generation = mGeneration;
+                    data = mJobData;
+                    output = mJobOutput;
+                    layout = mJobLayout;
+                }
+                RuntimeException error = null;
+                try {
+                    convertSlice(data, layout, output, mSlice);
+                } catch (RuntimeException e) {
+                    // Passed to the caller, so this thread can go on.
+                    error = e;
+                } finally {
+                    synchronized (mLock) {
+                        if (error != null && mJobError == null) mJobError = error;
+                        if (--mPending == 0) mLock.notifyAll();
+                    }
+                }
+            }
+        }
+    }
+}
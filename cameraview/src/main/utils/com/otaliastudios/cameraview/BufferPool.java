@@ -0,0 +1,109 @@
+package com.otaliastudios.cameraview;
+
+
+import java.util.ArrayDeque;
+
+/**
+ * A pool of byte arrays, keyed by their length, so that big arrays can be reused
+ * instead of being allocated each time.
+ *
+ * The pool has a byte budget: arrays that are recycled while the pool is full
+ * are simply dropped and left to the garbage collector.
+ * Arrays are requested at a few lengths only, so these are kept in a small set of buckets,
+ * which are looked up without boxing. When a new length comes in and all buckets are taken,
+ * one of them is emptied to make room.
+ * This class is thread-safe.
+ */
+class BufferPool {
+
+    private final static int BUCKETS = 8;
+
+    private final int[] mLengths = new int[BUCKETS];
+    @SuppressWarnings("unchecked")
+    private final ArrayDeque<byte[]>[] mQueues = new ArrayDeque[BUCKETS];
+    private int mNextEvicted = 0;
+    private int mBudget;
+    private int mPooledBytes;
+
+    BufferPool(int budget) {
+        mBudget = budget;
+        for (int i = 0; i < BUCKETS; i++) {
+            mQueues[i] = new ArrayDeque<>();
+        }
+    }
+
+    private int find(int length) {
+        for (int i = 0; i < BUCKETS; i++) {
+            if (mLengths[i] == length) return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns an array of the given length, either from the pool or a new one.
+     * Contents are not cleared.
+     *
+     * @param length the desired length
+     * @return an array
+     */
+    synchronized byte[] obtain(int length) {
+        int bucket = find(length);
+        byte[] buffer = bucket < 0 ? null : mQueues[bucket].poll();
+        if (buffer == null) return new byte[length];
+        mPooledBytes -= length;
+        return buffer;
+    }
+
+    /**
+     * Gives the array back to the pool, unless this would exceed the budget.
+     *
+     * @param buffer the array to recycle
+     */
+    synchronized void recycle(byte[] buffer) {
+        if (buffer == null || mPooledBytes + buffer.length > mBudget) return;
+        int bucket = find(buffer.length);
+        if (bucket < 0) {
+            bucket = takeBucket();
+            mLengths[bucket] = buffer.length;
+        }
+        mQueues[bucket].offer(buffer);
+        mPooledBytes += buffer.length;
+    }
+
+    // Returns an empty bucket, emptying one if needed.
+    private int takeBucket() {
+        for (int i = 0; i < BUCKETS; i++) {
+            if (mQueues[i].isEmpty()) return i;
+        }
+        int bucket = mNextEvicted;
+        mNextEvicted = (mNextEvicted + 1) % BUCKETS;
+        mPooledBytes -= mLengths[bucket] * mQueues[bucket].size();
+        mQueues[bucket].clear();
+        return bucket;
+    }
+
+    /**
+     * Changes the byte budget, dropping pooled arrays if needed.
+     *
+     * @param budget the new budget in bytes
+     */
+    synchronized void setBudget(int budget) {
+        mBudget = budget;
+        if (mPooledBytes > mBudget) clear();
+    }
+
+    synchronized int getBudget() {
+        return mBudget;
+    }
+
+    synchronized int getPooledBytes() {
+        return mPooledBytes;
+    }
+
+    synchronized void clear() {
+        for (int i = 0; i < BUCKETS; i++) {
+            mQueues[i].clear();
+        }
+        mPooledBytes = 0;
+    }
+}
@@ -87,6 +87,10 @@ public final class CameraLogger {
         sLevel = logLevel;
     }
 
+    /* for tests */ static int getLogLevel() {
+        return sLevel;
+    }
+
     /**
      * Registers an external {@link Logger} for log events.
      * Make sure to unregister using {@link #unregisterLogger(Logger)}.
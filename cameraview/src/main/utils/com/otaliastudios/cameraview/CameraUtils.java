@@ -100,53 +100,14 @@ public class CameraUtils {
     }
 
 
-    // TODO ignores flipping
+    // Flipped orientations are rotated first, then mirrored horizontally.
     @SuppressWarnings({"SuspiciousNameCombination", "WeakerAccess"})
     /* for tests */ static Bitmap decodeBitmap(byte[] source, int maxWidth, int maxHeight) {
         if (maxWidth <= 0) maxWidth = Integer.MAX_VALUE;
         if (maxHeight <= 0) maxHeight = Integer.MAX_VALUE;
-        int orientation;
-        boolean flip;
-        InputStream stream = null;
-        try {
-            // http://sylvana.net/jpegcrop/exif_orientation.html
-            stream = new ByteArrayInputStream(source);
-            ExifInterface exif = new ExifInterface(stream);
-            Integer exifOrientation = exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
-            switch (exifOrientation) {
-                case ExifInterface.ORIENTATION_NORMAL:
-                case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
-                    orientation = 0; break;
-
-                case ExifInterface.ORIENTATION_ROTATE_180:
-                case ExifInterface.ORIENTATION_FLIP_VERTICAL:
-                    orientation = 180; break;
-
-                case ExifInterface.ORIENTATION_ROTATE_90:
-                case ExifInterface.ORIENTATION_TRANSPOSE:
-                    orientation = 90; break;
-
-                case ExifInterface.ORIENTATION_ROTATE_270:
-                case ExifInterface.ORIENTATION_TRANSVERSE:
-                    orientation = 270; break;
-
-                default: orientation = 0;
-            }
-
-            flip = exifOrientation == ExifInterface.ORIENTATION_FLIP_HORIZONTAL ||
-                    exifOrientation == ExifInterface.ORIENTATION_FLIP_VERTICAL ||
-                    exifOrientation == ExifInterface.ORIENTATION_TRANSPOSE ||
-                    exifOrientation == ExifInterface.ORIENTATION_TRANSVERSE;
-
-        } catch (IOException e) {
-            e.printStackTrace();
-            orientation = 0;
-            flip = false;
-        } finally {
-            if (stream != null) {
-                try { stream.close(); } catch (Exception ignored) {}
-            }
-        }
+        int exifOrientation = readExifOrientation(source);
+        int orientation = getExifRotation(exifOrientation);
+        boolean flip = getExifMirror(exifOrientation);
 
         Bitmap bitmap;
         if (maxWidth < Integer.MAX_VALUE || maxHeight < Integer.MAX_VALUE) {
@@ -171,7 +132,7 @@ public class CameraUtils {
         if (orientation != 0 || flip) {
             Matrix matrix = new Matrix();
             matrix.setRotate(orientation);
-            // matrix.postScale(1, -1) Flip... needs testing.
+            if (flip) matrix.postScale(-1, 1);
             Bitmap temp = bitmap;
             bitmap = Bitmap.createBitmap(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight(), matrix, true);
             temp.recycle();
@@ -180,6 +141,56 @@ public class CameraUtils {
     }
 
 
+    // Returns the EXIF orientation tag of the given JPEG, or ORIENTATION_NORMAL if it can't be read.
+    static int readExifOrientation(byte[] source) {
+        InputStream stream = null;
+        try {
+            stream = new ByteArrayInputStream(source);
+            ExifInterface exif = new ExifInterface(stream);
+            return exif.getAttributeInt(ExifInterface.TAG_ORIENTATION, ExifInterface.ORIENTATION_NORMAL);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return ExifInterface.ORIENTATION_NORMAL;
+        } finally {
+            if (stream != null) {
+                try { stream.close(); } catch (Exception ignored) {}
+            }
+        }
+    }
+
+    // Returns the clockwise rotation for the given EXIF orientation tag, ignoring flips.
+    // http://sylvana.net/jpegcrop/exif_orientation.html
+    static int getExifRotation(int exifOrientation) {
+        switch (exifOrientation) {
+            case ExifInterface.ORIENTATION_ROTATE_180:
+            case ExifInterface.ORIENTATION_FLIP_VERTICAL:
+                return 180;
+
+            case ExifInterface.ORIENTATION_ROTATE_90:
+            case ExifInterface.ORIENTATION_TRANSPOSE:
+                return 90;
+
+            case ExifInterface.ORIENTATION_ROTATE_270:
+            case ExifInterface.ORIENTATION_TRANSVERSE:
+                return 270;
+
+            case ExifInterface.ORIENTATION_NORMAL:
+            case ExifInterface.ORIENTATION_FLIP_HORIZONTAL:
+            default:
+                return 0;
+        }
+    }
+
+    // Whether the given EXIF orientation tag has a flip. When it does, the picture should be
+    // mirrored horizontally after being rotated by getExifRotation().
+    static boolean getExifMirror(int exifOrientation) {
+        return exifOrientation == ExifInterface.ORIENTATION_FLIP_HORIZONTAL ||
+                exifOrientation == ExifInterface.ORIENTATION_FLIP_VERTICAL ||
+                exifOrientation == ExifInterface.ORIENTATION_TRANSPOSE ||
+                exifOrientation == ExifInterface.ORIENTATION_TRANSVERSE;
+    }
+
+
     private static int computeSampleSize(int width, int height, int maxWidth, int maxHeight) {
         // https://developer.android.com/topic/performance/graphics/load-bitmap.html
         int inSampleSize = 1;
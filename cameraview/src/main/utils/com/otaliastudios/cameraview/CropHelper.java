@@ -1,34 +1,146 @@
 package com.otaliastudios.cameraview;
 
 import android.graphics.Bitmap;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Matrix;
 import android.graphics.Rect;
-import android.graphics.YuvImage;
+import android.support.annotation.Nullable;
+import android.support.media.ExifInterface;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 
 class CropHelper {
 
+    private final static String TAG = CropHelper.class.getSimpleName();
+    private final static CameraLogger LOG = CameraLogger.create(TAG);
 
-    static byte[] cropToJpeg(YuvImage yuv, AspectRatio targetRatio, int jpegCompression) {
-        Rect crop = computeCrop(yuv.getWidth(), yuv.getHeight(), targetRatio);
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        yuv.compressToJpeg(crop, jpegCompression, out);
-        return out.toByteArray();
+
+    // This decodes just the cropped region, then rotates it as CameraUtils would do with
+    // the whole picture, and writes it to the given stream. The full Bitmap is never allocated.
+    // The original EXIF segment is copied over, with the new dimensions and orientation.
+    static void cropToJpeg(byte[] jpeg, AspectRatio targetRatio, int jpegCompression, JpegOutputStream output) {
+        BitmapRegionDecoder decoder;
+        try {
+            decoder = BitmapRegionDecoder.newInstance(jpeg, 0, jpeg.length, false);
+        } catch (IOException e) {
+            LOG.w("cropToJpeg:", "Region decoding not available, decoding the whole picture.", e);
+            cropToJpegFully(jpeg, targetRatio, jpegCompression, output);
+            return;
+        }
+
+        // The crop is computed on the picture as displayed, then mapped back to the stored one.
+        byte[] exif = ExifUtils.getExifSegment(jpeg);
+        int orientation = exif == null ? ExifInterface.ORIENTATION_NORMAL : ExifUtils.readOrientation(exif, 0);
+        int rotation = CameraUtils.getExifRotation(orientation);
+        boolean mirror = CameraUtils.getExifMirror(orientation);
+        int width = decoder.getWidth();
+        int height = decoder.getHeight();
+        boolean flip = rotation % 180 != 0;
+        Rect crop = computeCrop(flip ? height : width, flip ? width : height, targetRatio);
+        Bitmap region = decoder.decodeRegion(toStored(crop, width, height, rotation, mirror), null);
+        decoder.recycle();
+        if (region == null) {
+            LOG.w("cropToJpeg:", "Region decoding failed, decoding the whole picture.");
+            cropToJpegFully(jpeg, targetRatio, jpegCompression, output);
+            return;
+        }
+
+        if (rotation != 0 || mirror) {
+            Matrix matrix = new Matrix();
+            matrix.setRotate(rotation);
+            if (mirror) matrix.postScale(-1, 1);
+            Bitmap temp = region;
+            region = Bitmap.createBitmap(region, 0, 0, region.getWidth(), region.getHeight(), matrix, true);
+            temp.recycle();
+        }
+        compress(region, exif, jpegCompression, output);
     }
 
+    // This crops the compressed data, keeping quality and EXIF data as they are. The crop
+    // origin is moved to the previous MCU boundary, which is at most 15 pixels away.
+    // Returns false, leaving the stream empty, if the JPEG can not be cropped this way.
+    static boolean cropToJpegLossless(byte[] jpeg, AspectRatio targetRatio, JpegOutputStream output) {
+        JpegCropper cropper = JpegCropper.parse(jpeg);
+        if (cropper == null) return false;
+        int orientation = ExifUtils.readOrientation(jpeg, ExifUtils.findExifSegment(jpeg));
+        int rotation = CameraUtils.getExifRotation(orientation);
+        int width = cropper.getWidth();
+        int height = cropper.getHeight();
+        boolean flip = rotation % 180 != 0;
+        Rect crop = computeCrop(flip ? height : width, flip ? width : height, targetRatio);
+        crop = toStored(crop, width, height, rotation, CameraUtils.getExifMirror(orientation));
+        if (!cropper.crop(crop.left, crop.top, crop.width(), crop.height(), output)) return false;
+        // The orientation still applies, only the dimensions have changed.
+        byte[] result = output.getBuffer();
+        ExifUtils.writeDimensions(result, ExifUtils.findExifSegment(result), crop.width(), crop.height());
+        return true;
+    }
 
-    // This reads a rotated Bitmap thanks to CameraUtils. Then crops and returns a byte array.
-    // In doing so, EXIF data is deleted.
-    static byte[] cropToJpeg(byte[] jpeg, AspectRatio targetRatio, int jpegCompression) {
+    // Maps a rect of the picture as displayed, that is rotated clockwise by rotation and then
+    // mirrored if needed, back to the stored picture, whose size is width x height.
+    /* for tests */ static Rect toStored(Rect rect, int width, int height, int rotation, boolean mirror) {
+        if (mirror) {
+            int rotatedWidth = rotation % 180 != 0 ? height : width;
+            rect = new Rect(rotatedWidth - rect.right, rect.top, rotatedWidth - rect.left, rect.bottom);
+        }
+        return unrotate(rect, width, height, rotation);
+    }
 
+    // Maps a rect of the picture rotated clockwise by rotation, back to the stored picture,
+    // whose size is width x height.
+    /* for tests */ static Rect unrotate(Rect rect, int width, int height, int rotation) {
+        switch (rotation) {
+            case 90: return new Rect(rect.top, height - rect.right, rect.bottom, height - rect.left);
+            case 180: return new Rect(width - rect.right, height - rect.bottom, width - rect.left, height - rect.top);
+            case 270: return new Rect(width - rect.bottom, rect.left, width - rect.top, rect.right);
+            default: return new Rect(rect);
+        }
+    }
+
+    // This reads a rotated and mirrored Bitmap thanks to CameraUtils. Then crops and writes
+    // it to the given stream. The original EXIF segment is copied over, as in cropToJpeg.
+    private static void cropToJpegFully(byte[] jpeg, AspectRatio targetRatio, int jpegCompression,
+                                        JpegOutputStream output) {
+        byte[] exif = ExifUtils.getExifSegment(jpeg);
         Bitmap image = CameraUtils.decodeBitmap(jpeg, Integer.MAX_VALUE, Integer.MAX_VALUE);
         Rect cropRect = computeCrop(image.getWidth(), image.getHeight(), targetRatio);
         Bitmap crop = Bitmap.createBitmap(image, cropRect.left, cropRect.top, cropRect.width(), cropRect.height());
-        image.recycle();
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        crop.compress(Bitmap.CompressFormat.JPEG, jpegCompression, out);
-        crop.recycle();
-        return out.toByteArray();
+        if (crop != image) image.recycle();
+        compress(crop, exif, jpegCompression, output);
+    }
+
+    // Compresses and recycles an upright bitmap. The EXIF segment, if any, is patched
+    // to match it, and inserted in the output as is, without parsing anything else.
+    private static void compress(Bitmap bitmap, @Nullable byte[] exif, int jpegCompression,
+                                 JpegOutputStream output) {
+        int width = bitmap.getWidth();
+        int height = bitmap.getHeight();
+        output.reserve(JpegOutputStream.estimateSize(width, height, jpegCompression)
+                + (exif == null ? 0 : exif.length));
+        OutputStream stream = output;
+        if (exif != null) {
+            ExifUtils.writeOrientation(exif, 0, ExifInterface.ORIENTATION_NORMAL);
+            ExifUtils.writeDimensions(exif, 0, width, height);
+            stream = ExifUtils.withSegment(output, exif);
+        }
+        bitmap.compress(Bitmap.CompressFormat.JPEG, jpegCompression, stream);
+        bitmap.recycle();
+        try {
+            stream.close();
+        } catch (IOException e) {
+            // Can't happen, the output does not throw.
+        }
+    }
+
+    // Same as computeCrop, but with even bounds, as needed to crop NV21 data.
+    static Rect computeEvenCrop(int currentWidth, int currentHeight, AspectRatio targetRatio) {
+        Rect crop = computeCrop(currentWidth, currentHeight, targetRatio);
+        int width = crop.width() & ~1;
+        int height = crop.height() & ~1;
+        int x = ((currentWidth - width) / 2) & ~1;
+        int y = ((currentHeight - height) / 2) & ~1;
+        return new Rect(x, y, x + width, y + height);
     }
 
     private static Rect computeCrop(int currentWidth, int currentHeight, AspectRatio targetRatio) {
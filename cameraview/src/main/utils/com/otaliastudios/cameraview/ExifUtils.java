@@ -1,11 +1,40 @@
 package com.otaliastudios.cameraview;
 
 
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 import android.support.media.ExifInterface;
 
-// TODO unused.
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
 class ExifUtils {
 
+    // APP1 segment with a big endian TIFF header and a single IFD entry, the orientation.
+    // Values at ORIENTATION_INDEX are filled in for each tag.
+    private final static byte[] ORIENTATION_SEGMENT = new byte[]{
+            (byte) 0xFF, (byte) 0xE1, 0, 34, // APP1 marker and length
+            'E', 'x', 'i', 'f', 0, 0, // Exif header
+            'M', 'M', 0, 42, 0, 0, 0, 8, // TIFF header, IFD0 at offset 8
+            0, 1, // One entry
+            0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, 0, 0, 0, // Orientation, SHORT, one value
+            0, 0, 0, 0 // No next IFD
+    };
+    private final static int ORIENTATION_INDEX = 28;
+
+    // Offset of the TIFF header in an APP1 segment: marker, length and Exif header.
+    private final static int TIFF_OFFSET = 10;
+    private final static int TAG_IMAGE_WIDTH = 0x0100;
+    private final static int TAG_IMAGE_LENGTH = 0x0101;
+    private final static int TAG_ORIENTATION = 0x0112;
+    private final static int TAG_EXIF_IFD = 0x8769;
+    private final static int TAG_PIXEL_X_DIMENSION = 0xA002;
+    private final static int TAG_PIXEL_Y_DIMENSION = 0xA003;
+    private final static int TYPE_SHORT = 3;
+    private final static int TYPE_LONG = 4;
+
     static int getOrientationTag(int rotation, boolean flip) {
         switch (rotation) {
             case 90:
@@ -26,4 +55,261 @@ class ExifUtils {
                         ExifInterface.ORIENTATION_NORMAL;
         }
     }
+
+    /**
+     * Returns an APP1 segment that holds just the given orientation tag.
+     */
+    static byte[] getOrientationSegment(int orientation) {
+        byte[] segment = ORIENTATION_SEGMENT.clone();
+        segment[ORIENTATION_INDEX] = (byte) (orientation >> 8);
+        segment[ORIENTATION_INDEX + 1] = (byte) orientation;
+        return segment;
+    }
+
+    /**
+     * Wraps a stream that a JPEG is about to be written to, so that the given orientation
+     * tag is added to it. The segment is inserted after the start of image marker and
+     * after the JFIF segment, if there is one. Nothing else is buffered or copied.
+     */
+    @NonNull
+    static OutputStream withOrientation(@NonNull OutputStream stream, int orientation) {
+        return withSegment(stream, getOrientationSegment(orientation));
+    }
+
+    /**
+     * Same as {@link #withOrientation(OutputStream, int)}, but inserts the given segment,
+     * e.g. an APP1 segment copied from another JPEG.
+     */
+    @NonNull
+    static OutputStream withSegment(@NonNull OutputStream stream, @NonNull byte[] segment) {
+        return new SegmentStream(stream, segment);
+    }
+
+    /**
+     * Returns the index of the EXIF APP1 segment marker, or -1 if there is none.
+     * Only the segment headers are read, up to the start of scan.
+     */
+    static int findExifSegment(@NonNull byte[] jpeg) {
+        if (jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != 0xD8) return -1;
+        int position = 2;
+        while (position + 4 <= jpeg.length && (jpeg[position] & 0xFF) == 0xFF) {
+            int marker = jpeg[position + 1] & 0xFF;
+            if (marker == 0xFF) {
+                position++;
+                continue;
+            }
+            if (marker == 0xDA || marker == 0xD9) return -1; // Start of scan, end of image
+            int length = (jpeg[position + 2] & 0xFF) << 8 | (jpeg[position + 3] & 0xFF);
+            if (marker == 0xE1 && length >= 8 && position + 2 + length <= jpeg.length
+                    && jpeg[position + 4] == 'E' && jpeg[position + 5] == 'x' && jpeg[position + 6] == 'i'
+                    && jpeg[position + 7] == 'f' && jpeg[position + 8] == 0 && jpeg[position + 9] == 0) {
+                return position;
+            }
+            position += 2 + length;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns a copy of the EXIF APP1 segment, or null if there is none.
+     */
+    @Nullable
+    static byte[] getExifSegment(@NonNull byte[] jpeg) {
+        int position = findExifSegment(jpeg);
+        if (position < 0) return null;
+        int length = (jpeg[position + 2] & 0xFF) << 8 | (jpeg[position + 3] & 0xFF);
+        return Arrays.copyOfRange(jpeg, position, position + 2 + length);
+    }
+
+    /**
+     * Reads the orientation tag of the EXIF segment at the given index,
+     * or returns ORIENTATION_NORMAL if there is none.
+     */
+    static int readOrientation(@NonNull byte[] data, int segment) {
+        Tiff tiff = Tiff.read(data, segment);
+        int entry = tiff == null ? -1 : tiff.find(tiff.mIfd0, TAG_ORIENTATION);
+        if (entry < 0) return ExifInterface.ORIENTATION_NORMAL;
+        int orientation = tiff.readValue(entry);
+        return orientation >= ExifInterface.ORIENTATION_NORMAL && orientation <= ExifInterface.ORIENTATION_ROTATE_270 ?
+                orientation : ExifInterface.ORIENTATION_NORMAL;
+    }
+
+    /**
+     * Overwrites the orientation tag of the EXIF segment at the given index, if there is one.
+     * Tags are never added, so the segment keeps its size.
+     */
+    static void writeOrientation(@NonNull byte[] data, int segment, int orientation) {
+        Tiff tiff = Tiff.read(data, segment);
+        if (tiff != null) tiff.writeValue(tiff.find(tiff.mIfd0, TAG_ORIENTATION), orientation);
+    }
+
+    /**
+     * Overwrites the image width and height tags of the EXIF segment at the given index,
+     * where they exist. Tags are never added, so the segment keeps its size.
+     */
+    static void writeDimensions(@NonNull byte[] data, int segment, int width, int height) {
+        Tiff tiff = Tiff.read(data, segment);
+        if (tiff == null) return;
+        tiff.writeValue(tiff.find(tiff.mIfd0, TAG_IMAGE_WIDTH), width);
+        tiff.writeValue(tiff.find(tiff.mIfd0, TAG_IMAGE_LENGTH), height);
+        int pointer = tiff.find(tiff.mIfd0, TAG_EXIF_IFD);
+        if (pointer >= 0) {
+            int exifIfd = tiff.mStart + tiff.readValue(pointer);
+            tiff.writeValue(tiff.find(exifIfd, TAG_PIXEL_X_DIMENSION), width);
+            tiff.writeValue(tiff.find(exifIfd, TAG_PIXEL_Y_DIMENSION), height);
+        }
+    }
+
+    // The TIFF structure inside an EXIF segment. Reads are bounded by the segment end,
+    // so that a malformed segment is just ignored.
+    private static class Tiff {
+
+        private final byte[] mData;
+        private final int mStart;
+        private final int mEnd;
+        private final boolean mLittleEndian;
+        private int mIfd0;
+
+        private Tiff(byte[] data, int start, int end, boolean littleEndian) {
+            mData = data;
+            mStart = start;
+            mEnd = end;
+            mLittleEndian = littleEndian;
+        }
+
+        @Nullable
+        private static Tiff read(byte[] data, int segment) {
+            if (segment < 0 || segment + TIFF_OFFSET + 8 > data.length) return null;
+            int length = (data[segment + 2] & 0xFF) << 8 | (data[segment + 3] & 0xFF);
+            int start = segment + TIFF_OFFSET;
+            int end = Math.min(data.length, segment + 2 + length);
+            boolean little;
+            if (data[start] == 'I' && data[start + 1] == 'I') {
+                little = true;
+            } else if (data[start] == 'M' && data[start + 1] == 'M') {
+                little = false;
+            } else {
+                return null;
+            }
+            Tiff tiff = new Tiff(data, start, end, little);
+            if (tiff.read(start + 2, 2) != 42) return null;
+            tiff.mIfd0 = start + tiff.read(start + 4, 4);
+            return tiff;
+        }
+
+        private int read(int index, int bytes) {
+            int value = 0;
+            for (int i = 0; i < bytes; i++) {
+                int b = mData[mLittleEndian ? index + bytes - 1 - i : index + i] & 0xFF;
+                value = value << 8 | b;
+            }
+            return value;
+        }
+
+        private void write(int index, int bytes, int value) {
+            for (int i = 0; i < bytes; i++) {
+                int b = (value >> (8 * (bytes - 1 - i))) & 0xFF;
+                mData[mLittleEndian ? index + bytes - 1 - i : index + i] = (byte) b;
+            }
+        }
+
+        // Returns the index of the entry with the given tag in the given IFD, or -1.
+        private int find(int ifd, int tag) {
+            if (ifd < mStart || ifd + 2 > mEnd) return -1;
+            int count = read(ifd, 2);
+            for (int i = 0; i < count; i++) {
+                int entry = ifd + 2 + 12 * i;
+                if (entry + 12 > mEnd) return -1;
+                if (read(entry, 2) == tag) return entry;
+            }
+            return -1;
+        }
+
+        // Values that fit in the entry are stored at its end.
+        private int readValue(int entry) {
+            return read(entry + 2, 2) == TYPE_SHORT ? read(entry + 8, 2) : read(entry + 8, 4);
+        }
+
+        private void writeValue(int entry, int value) {
+            if (entry < 0) return;
+            int type = read(entry + 2, 2);
+            if (type == TYPE_SHORT) {
+                write(entry + 8, 2, value);
+            } else if (type == TYPE_LONG) {
+                write(entry + 8, 4, value);
+            }
+        }
+    }
+
+    private static class SegmentStream extends FilterOutputStream {
+
+        // SOI marker, next marker and its length.
+        private final byte[] mHeader = new byte[6];
+        private final byte[] mSegment;
+        private int mHeaderSize = 0;
+        private long mSkip = -1; // Bytes to pass before inserting, once known.
+        private boolean mInserted = false;
+
+        private SegmentStream(OutputStream out, byte[] segment) {
+            super(out);
+            mSegment = segment;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{ (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(@NonNull byte[] b, int off, int len) throws IOException {
+            while (len > 0 && !mInserted) {
+                if (mSkip < 0) {
+                    // Still reading the header.
+                    int count = Math.min(len, mHeader.length - mHeaderSize);
+                    System.arraycopy(b, off, mHeader, mHeaderSize, count);
+                    mHeaderSize += count;
+                    off += count;
+                    len -= count;
+                    if (mHeaderSize < mHeader.length) return;
+                    onHeader();
+                } else {
+                    int count = (int) Math.min(len, mSkip);
+                    out.write(b, off, count);
+                    mSkip -= count;
+                    off += count;
+                    len -= count;
+                    if (mSkip == 0) insert();
+                }
+            }
+            if (len > 0) out.write(b, off, len);
+        }
+
+        private void onHeader() throws IOException {
+            boolean jfif = (mHeader[2] & 0xFF) == 0xFF && (mHeader[3] & 0xFF) == 0xE0;
+            if (jfif) {
+                // Let the JFIF segment through, it should come first.
+                out.write(mHeader);
+                mSkip = ((mHeader[4] & 0xFF) << 8 | (mHeader[5] & 0xFF)) - 2;
+                if (mSkip == 0) insert();
+            } else {
+                out.write(mHeader, 0, 2);
+                insert();
+                out.write(mHeader, 2, mHeader.length - 2);
+            }
+        }
+
+        private void insert() throws IOException {
+            out.write(mSegment);
+            mInserted = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            // Anything short of a header is not a JPEG we can tag, so let it through.
+            if (!mInserted && mSkip < 0) {
+                out.write(mHeader, 0, mHeaderSize);
+            }
+            super.close();
+        }
+    }
 }
@@ -0,0 +1,520 @@
+package com.otaliastudios.cameraview;
+
+import android.support.annotation.Nullable;
+
+import java.util.Arrays;
+
+/**
+ * Crops baseline JPEGs in the compressed domain, so that no pixel is decoded and
+ * there is no quality loss.
+ *
+ * JPEG data is made of MCUs, blocks of 8x8 to 16x16 pixels that are coded independently,
+ * except for the DC coefficient of each block, which is coded as a difference from the
+ * previous block. So we Huffman-decode the scan, drop the MCUs outside of the crop, recompute
+ * the DC differences of the ones we keep, and code them again with the same tables.
+ * AC coefficients are copied symbol by symbol.
+ *
+ * The crop origin must be on MCU boundaries, so it is moved up and left if needed.
+ * The crop size is kept as is, because decoders ignore pixels beyond the image size.
+ *
+ * Progressive, arithmetic-coded, lossless, 12-bit and multi-scan JPEGs are not supported:
+ * {@link #parse(byte[])} returns null for them, so callers can fall back to decoding.
+ * Restart markers are supported in the input, and dropped from the output.
+ * Everything else, including EXIF data, is copied as is.
+ */
+class JpegCropper {
+
+    private final static int SOF0 = 0xC0;
+    private final static int SOF1 = 0xC1;
+    private final static int DHT = 0xC4;
+    private final static int SOI = 0xD8;
+    private final static int EOI = 0xD9;
+    private final static int SOS = 0xDA;
+    private final static int DRI = 0xDD;
+    private final static int RST0 = 0xD0;
+    private final static int RST7 = 0xD7;
+
+    // Thrown when data is invalid, or uses features that we don't support.
+    private static class UnsupportedJpegException extends Exception {
+        private final static long serialVersionUID = 1L;
+
+        UnsupportedJpegException(String message) {
+            super(message);
+        }
+    }
+
+    private final byte[] mJpeg;
+    private int mWidth;
+    private int mHeight;
+    private int mMcuWidth;
+    private int mMcuHeight;
+    private int mMcusPerRow;
+    private int mRestartInterval = 0;
+    private int mScanStart;
+
+    // Per component, in scan order.
+    private int[] mBlocksH;
+    private int[] mBlocksV;
+    private HuffmanTable[] mDcTables;
+    private HuffmanTable[] mAcTables;
+
+    private JpegCropper(byte[] jpeg) {
+        mJpeg = jpeg;
+    }
+
+    /**
+     * Reads the JPEG headers, and returns a cropper for it,
+     * or null if this JPEG can not be cropped losslessly.
+     */
+    @Nullable
+    static JpegCropper parse(byte[] jpeg) {
+        JpegCropper cropper = new JpegCropper(jpeg);
+        try {
+            cropper.readHeaders();
+            return cropper;
+        } catch (UnsupportedJpegException e) {
+            return null;
+        }
+    }
+
+    int getWidth() {
+        return mWidth;
+    }
+
+    int getHeight() {
+        return mHeight;
+    }
+
+    int getMcuWidth() {
+        return mMcuWidth;
+    }
+
+    int getMcuHeight() {
+        return mMcuHeight;
+    }
+
+    /**
+     * Crops the JPEG. The origin is moved to the MCU boundary up and left of it,
+     * while the output size is the requested one.
+     * Returns null if the scan data is invalid or can not be coded again.
+     */
+    @Nullable
+    byte[] crop(int x, int y, int width, int height) {
+        JpegOutputStream output = new JpegOutputStream(null);
+        return crop(x, y, width, height, output) ? output.toByteArray() : null;
+    }
+
+    /**
+     * Same as {@link #crop(int, int, int, int)}, but writes to the given stream.
+     * Returns false if the scan data is invalid or can not be coded again,
+     * in which case the stream is left empty.
+     */
+    boolean crop(int x, int y, int width, int height, JpegOutputStream output) {
+        if (x < 0 || y < 0 || width <= 0 || height <= 0 || x + width > mWidth || y + height > mHeight) {
+            throw new IllegalArgumentException("Crop should be inside the image.");
+        }
+        // The output size is roughly proportional to the area we keep.
+        long estimate = (long) mJpeg.length * width * height / ((long) mWidth * mHeight);
+        output.reserve((int) estimate + mScanStart + 1024);
+        BitWriter writer = new BitWriter(output);
+        try {
+            writeHeaders(writer, width, height);
+            writeScan(writer, x / mMcuWidth, y / mMcuHeight,
+                    (width + mMcuWidth - 1) / mMcuWidth, (height + mMcuHeight - 1) / mMcuHeight);
+        } catch (UnsupportedJpegException e) {
+            output.reset();
+            return false;
+        }
+        writer.flush();
+        writer.putByte(0xFF);
+        writer.putByte(EOI);
+        return true;
+    }
+
+    private int readShort(int index) {
+        return (mJpeg[index] & 0xFF) << 8 | (mJpeg[index + 1] & 0xFF);
+    }
+
+    // Walks segments up to the start of scan, reading frame, tables and restart interval.
+    private void readHeaders() throws UnsupportedJpegException {
+        byte[] jpeg = mJpeg;
+        if (jpeg.length < 4 || (jpeg[0] & 0xFF) != 0xFF || (jpeg[1] & 0xFF) != SOI) {
+            throw new UnsupportedJpegException("Not a JPEG.");
+        }
+        HuffmanTable[] dcTables = new HuffmanTable[4];
+        HuffmanTable[] acTables = new HuffmanTable[4];
+        int[] ids = null, samplingH = null, samplingV = null;
+        int position = 2;
+        while (true) {
+            if (position + 4 > jpeg.length || (jpeg[position] & 0xFF) != 0xFF) {
+                throw new UnsupportedJpegException("Invalid segment.");
+            }
+            int marker = jpeg[position + 1] & 0xFF;
+            if (marker == 0xFF) {
+                position++; // Fill byte
+                continue;
+            }
+            int start = position + 4;
+            int end = position + 2 + readShort(position + 2);
+            if (end < start || end > jpeg.length) {
+                throw new UnsupportedJpegException("Invalid segment length.");
+            }
+            if (marker == SOF0 || marker == SOF1) {
+                if (start + 6 > end) throw new UnsupportedJpegException("Invalid frame.");
+                if ((jpeg[start] & 0xFF) != 8) throw new UnsupportedJpegException("Not 8-bit.");
+                mHeight = readShort(start + 1);
+                mWidth = readShort(start + 3);
+                int count = jpeg[start + 5] & 0xFF;
+                if (mWidth == 0 || mHeight == 0 || count == 0 || start + 6 + 3 * count > end) {
+                    throw new UnsupportedJpegException("Invalid frame.");
+                }
+                ids = new int[count];
+                samplingH = new int[count];
+                samplingV = new int[count];
+                for (int i = 0; i < count; i++) {
+                    int index = start + 6 + 3 * i;
+                    ids[i] = jpeg[index] & 0xFF;
+                    samplingH[i] = (jpeg[index + 1] & 0xFF) >> 4;
+                    samplingV[i] = jpeg[index + 1] & 0x0F;
+                    if (samplingH[i] < 1 || samplingH[i] > 4 || samplingV[i] < 1 || samplingV[i] > 4) {
+                        throw new UnsupportedJpegException("Invalid sampling factors.");
+                    }
+                }
+            } else if (marker == DHT) {
+                int index = start;
+                while (index < end) {
+                    int info = jpeg[index] & 0xFF;
+                    if ((info & 0x0F) > 3 || (info >> 4) > 1) throw new UnsupportedJpegException("Invalid table.");
+                    HuffmanTable table = new HuffmanTable();
+                    index = table.read(jpeg, index + 1, end);
+                    if ((info >> 4) == 0) {
+                        dcTables[info & 0x0F] = table;
+                    } else {
+                        acTables[info & 0x0F] = table;
+                    }
+                }
+            } else if (marker == DRI) {
+                if (start + 2 > end) throw new UnsupportedJpegException("Invalid restart interval.");
+                mRestartInterval = readShort(start);
+            } else if (marker == SOS) {
+                if (ids == null) throw new UnsupportedJpegException("Scan before frame.");
+                readScanHeader(start, end, ids, samplingH, samplingV, dcTables, acTables);
+                mScanStart = end;
+                return;
+            } else if (marker >= 0xC2 && marker <= 0xCF && marker != DHT && marker != 0xC8) {
+                // Progressive, lossless, hierarchical or arithmetic coding.
+                throw new UnsupportedJpegException("Unsupported frame type.");
+            } else if (marker == EOI) {
+                throw new UnsupportedJpegException("No scan.");
+            }
+            position = end;
+        }
+    }
+
+    private void readScanHeader(int start, int end, int[] ids, int[] samplingH, int[] samplingV,
+                                HuffmanTable[] dcTables, HuffmanTable[] acTables) throws UnsupportedJpegException {
+        byte[] jpeg = mJpeg;
+        int count = start < end ? jpeg[start] & 0xFF : 0;
+        if (count != ids.length || start + 1 + 2 * count + 3 > end) {
+            // Components in separate scans: we would have to crop each scan.
+            throw new UnsupportedJpegException("Not a single interleaved scan.");
+        }
+        int index = start + 1 + 2 * count;
+        if ((jpeg[index] & 0xFF) != 0 || (jpeg[index + 1] & 0xFF) != 63 || (jpeg[index + 2] & 0xFF) != 0) {
+            throw new UnsupportedJpegException("Not a sequential scan.");
+        }
+        int maxH = 1, maxV = 1;
+        for (int i = 0; i < count; i++) {
+            maxH = Math.max(maxH, samplingH[i]);
+            maxV = Math.max(maxV, samplingV[i]);
+        }
+        mBlocksH = new int[count];
+        mBlocksV = new int[count];
+        mDcTables = new HuffmanTable[count];
+        mAcTables = new HuffmanTable[count];
+        for (int i = 0; i < count; i++) {
+            int id = jpeg[start + 1 + 2 * i] & 0xFF;
+            int tables = jpeg[start + 2 + 2 * i] & 0xFF;
+            int component = -1;
+            for (int j = 0; j < ids.length; j++) {
+                if (ids[j] == id) component = j;
+            }
+            if (component < 0 || (tables >> 4) > 3 || (tables & 0x0F) > 3) {
+                throw new UnsupportedJpegException("Invalid scan component.");
+            }
+            mDcTables[i] = dcTables[tables >> 4];
+            mAcTables[i] = acTables[tables & 0x0F];
+            if (mDcTables[i] == null || mAcTables[i] == null) {
+                throw new UnsupportedJpegException("Missing table.");
+            }
+            // A single component scan is not interleaved: MCUs are single blocks.
+            mBlocksH[i] = count == 1 ? 1 : samplingH[component];
+            mBlocksV[i] = count == 1 ? 1 : samplingV[component];
+        }
+        mMcuWidth = count == 1 ? 8 : 8 * maxH;
+        mMcuHeight = count == 1 ? 8 : 8 * maxV;
+        mMcusPerRow = (mWidth + mMcuWidth - 1) / mMcuWidth;
+    }
+
+    // Copies segments up to the scan, with the new frame size and no restart interval.
+    private void writeHeaders(BitWriter writer, int width, int height) {
+        byte[] jpeg = mJpeg;
+        writer.putBytes(jpeg, 0, 2);
+        int position = 2;
+        while (position < mScanStart) {
+            int marker = jpeg[position + 1] & 0xFF;
+            if (marker == 0xFF) {
+                position++;
+                continue;
+            }
+            int end = position + 2 + readShort(position + 2);
+            if (marker == SOF0 || marker == SOF1) {
+                writer.putBytes(jpeg, position, 5);
+                writer.putByte(height >> 8);
+                writer.putByte(height);
+                writer.putByte(width >> 8);
+                writer.putByte(width);
+                writer.putBytes(jpeg, position + 9, end - position - 9);
+            } else if (marker != DRI) {
+                writer.putBytes(jpeg, position, end - position);
+            }
+            position = end;
+        }
+    }
+
+    // Decodes MCU rows up to the last one we keep, and codes again the MCUs inside the crop.
+    private void writeScan(BitWriter writer, int firstColumn, int firstRow, int columns, int rows)
+            throws UnsupportedJpegException {
+        BitReader reader = new BitReader(mJpeg, mScanStart);
+        int components = mBlocksH.length;
+        int[] inputPredictions = new int[components];
+        int[] outputPredictions = new int[components];
+        int untilRestart = mRestartInterval;
+        int lastColumn = firstColumn + columns;
+        int lastRow = firstRow + rows;
+        for (int row = 0; row < lastRow; row++) {
+            for (int column = 0; column < mMcusPerRow; column++) {
+                if (mRestartInterval > 0) {
+                    if (untilRestart == 0) {
+                        reader.restart();
+                        Arrays.fill(inputPredictions, 0);
+                        untilRestart = mRestartInterval;
+                    }
+                    untilRestart--;
+                }
+                boolean keep = row >= firstRow && column >= firstColumn && column < lastColumn;
+                for (int c = 0; c < components; c++) {
+                    int blocks = mBlocksH[c] * mBlocksV[c];
+                    for (int block = 0; block < blocks; block++) {
+                        // DC coefficients are coded as the difference from the previous block we keep.
+                        HuffmanTable dc = mDcTables[c];
+                        inputPredictions[c] += reader.receiveExtend(dc.decode(reader));
+                        if (keep) {
+                            int diff = inputPredictions[c] - outputPredictions[c];
+                            outputPredictions[c] = inputPredictions[c];
+                            int category = getCategory(diff);
+                            if (category > 11 || dc.mLengths[category] == 0) {
+                                throw new UnsupportedJpegException("DC difference can not be coded.");
+                            }
+                            writer.write(dc.mCodes[category], dc.mLengths[category]);
+                            if (category > 0) writer.write(diff < 0 ? diff - 1 : diff, category);
+                        }
+                        copyAc(reader, keep ? writer : null, mAcTables[c]);
+                    }
+                }
+            }
+        }
+    }
+
+    // AC coefficients do not depend on other blocks, so symbols and bits can be copied.
+    private static void copyAc(BitReader reader, @Nullable BitWriter writer, HuffmanTable ac)
+            throws UnsupportedJpegException {
+        int k = 1;
+        while (k < 64) {
+            int symbol = ac.decode(reader);
+            if (writer != null) writer.write(ac.mCodes[symbol], ac.mLengths[symbol]);
+            int run = symbol >> 4;
+            int size = symbol & 0x0F;
+            if (size == 0) {
+                if (run != 15) return; // End of block
+                k += 16;
+            } else {
+                k += run;
+                int bits = reader.receive(size);
+                if (writer != null) writer.write(bits, size);
+                k++;
+            }
+        }
+        if (k > 64) throw new UnsupportedJpegException("Invalid AC run.");
+    }
+
+    private static int getCategory(int value) {
+        return value == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    private static class HuffmanTable {
+
+        // Codes up to this length are decoded with a single lookup.
+        private final static int LOOKAHEAD = 9;
+
+        private final int[] mLookup = new int[1 << LOOKAHEAD]; // (length << 8) | symbol
+        private final int[] mMaxCode = new int[17];
+        private final int[] mValueOffset = new int[17];
+        private final int[] mCodes = new int[256];
+        private final int[] mLengths = new int[256];
+        private byte[] mValues;
+
+        // Reads counts and values, and returns the index after them.
+        private int read(byte[] data, int index, int end) throws UnsupportedJpegException {
+            if (index + 16 > end) throw new UnsupportedJpegException("Invalid table.");
+            int total = 0;
+            for (int length = 1; length <= 16; length++) total += data[index + length - 1] & 0xFF;
+            if (total > 256 || index + 16 + total > end) throw new UnsupportedJpegException("Invalid table.");
+            mValues = Arrays.copyOfRange(data, index + 16, index + 16 + total);
+
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                int count = data[index + length - 1] & 0xFF;
+                mValueOffset[length] = k - code;
+                for (int i = 0; i < count; i++) {
+                    int symbol = mValues[k++] & 0xFF;
+                    mCodes[symbol] = code;
+                    mLengths[symbol] = length;
+                    if (length <= LOOKAHEAD) {
+                        int shift = LOOKAHEAD - length;
+                        int first = code << shift;
+                        Arrays.fill(mLookup, first, first + (1 << shift), length << 8 | symbol);
+                    }
+                    code++;
+                }
+                if (code > 1 << length) throw new UnsupportedJpegException("Invalid table.");
+                mMaxCode[length] = count == 0 ? -1 : code - 1;
+                code <<= 1;
+            }
+            return index + 16 + total;
+        }
+
+        private int decode(BitReader reader) throws UnsupportedJpegException {
+            int entry = mLookup[reader.peek(LOOKAHEAD)];
+            if (entry != 0) {
+                reader.skip(entry >> 8);
+                return entry & 0xFF;
+            }
+            for (int length = LOOKAHEAD + 1; length <= 16; length++) {
+                int code = reader.peek(length);
+                if (code <= mMaxCode[length]) {
+                    reader.skip(length);
+                    return mValues[code + mValueOffset[length]] & 0xFF;
+                }
+            }
+            throw new UnsupportedJpegException("Invalid code.");
+        }
+    }
+
+    // Reads entropy-coded data, removing stuffed bytes. Markers are not consumed,
+    // and zeros are returned instead, until restart() is called.
+    private static class BitReader {
+
+        private final byte[] mData;
+        private int mPosition;
+        private long mBuffer;
+        private int mBits;
+        private boolean mAtMarker;
+
+        private BitReader(byte[] data, int position) {
+            mData = data;
+            mPosition = position;
+        }
+
+        private void fill() {
+            while (mBits <= 56) {
+                int value = 0;
+                if (!mAtMarker && mPosition < mData.length) {
+                    value = mData[mPosition] & 0xFF;
+                    if (value != 0xFF) {
+                        mPosition++;
+                    } else if (mPosition + 1 < mData.length && mData[mPosition + 1] == 0) {
+                        mPosition += 2;
+                    } else {
+                        mAtMarker = true;
+                        value = 0;
+                    }
+                }
+                mBuffer = mBuffer << 8 | value;
+                mBits += 8;
+            }
+        }
+
+        private int peek(int count) {
+            if (mBits < count) fill();
+            return (int) (mBuffer >>> (mBits - count)) & ((1 << count) - 1);
+        }
+
+        private void skip(int count) {
+            mBits -= count;
+        }
+
+        private int receive(int count) {
+            int value = peek(count);
+            skip(count);
+            return value;
+        }
+
+        private int receiveExtend(int count) throws UnsupportedJpegException {
+            if (count == 0) return 0;
+            if (count > 16) throw new UnsupportedJpegException("Invalid DC category.");
+            int value = receive(count);
+            return value < 1 << (count - 1) ? value - (1 << count) + 1 : value;
+        }
+
+        // Drops the padding bits, and consumes the restart marker that follows.
+        private void restart() throws UnsupportedJpegException {
+            mBuffer = 0;
+            mBits = 0;
+            mAtMarker = false;
+            while (mPosition + 1 < mData.length && (mData[mPosition + 1] & 0xFF) == 0xFF) mPosition++;
+            if (mPosition + 1 >= mData.length || (mData[mPosition] & 0xFF) != 0xFF
+                    || (mData[mPosition + 1] & 0xFF) < RST0 || (mData[mPosition + 1] & 0xFF) > RST7) {
+                throw new UnsupportedJpegException("Missing restart marker.");
+            }
+            mPosition += 2;
+        }
+    }
+
+    // Writes entropy-coded data, stuffing a zero after each 0xFF byte.
+    private static class BitWriter {
+
+        private final JpegOutputStream mOutput;
+        private long mAccumulator;
+        private int mBits;
+
+        private BitWriter(JpegOutputStream output) {
+            mOutput = output;
+        }
+
+        private void putByte(int value) {
+            mOutput.write(value);
+        }
+
+        private void putBytes(byte[] data, int offset, int count) {
+            mOutput.write(data, offset, count);
+        }
+
+        private void write(int value, int count) {
+            mAccumulator = mAccumulator << count | (value & ((1L << count) - 1));
+            mBits += count;
+            while (mBits >= 8) {
+                mBits -= 8;
+                int b = (int) (mAccumulator >>> mBits) & 0xFF;
+                putByte(b);
+                if (b == 0xFF) putByte(0);
+            }
+        }
+
+        // Pads the last byte with ones.
+        private void flush() {
+            if (mBits > 0) write((1 << (8 - mBits)) - 1, 8 - mBits);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package com.otaliastudios.cameraview;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * An output stream for JPEG encoders, writing into an array from a {@link BufferPool}.
+ *
+ * Encoders should call {@link #reserve(int)} with {@link #estimateSize(int, int, int)} before
+ * writing, so that the array rarely has to grow. Once done, consumers can read the data
+ * in place with {@link #getBuffer()} and {@link #size()}, and then give the array back with {@link #release()}.
+ *
+ * Array lengths are rounded, so that pictures of similar sizes can reuse the same arrays.
+ * This class is not thread-safe.
+ */
+class JpegOutputStream extends OutputStream {
+
+    private final static int ALIGNMENT = 64 * 1024;
+
+    @Nullable private final BufferPool mPool;
+    private byte[] mBuffer;
+    private int mSize;
+
+    JpegOutputStream(@Nullable BufferPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * Returns the number of bytes that a camera picture with the given size and quality
+     * usually takes, erring on the large side.
+     *
+     * @param width the picture width
+     * @param height the picture height
+     * @param quality the JPEG quality, 0-100
+     * @return the estimated size
+     */
+    static int estimateSize(int width, int height, int quality) {
+        float bytesPerPixel = 0.05F + 0.45F * quality * quality / 10000F;
+        return (int) (width * height * bytesPerPixel) + 4096;
+    }
+
+    /**
+     * Makes sure that the given number of bytes, in total, can be written without growing.
+     *
+     * @param capacity the total capacity
+     */
+    void reserve(int capacity) {
+        if (mBuffer != null && mBuffer.length >= capacity) return;
+        int length = (capacity + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+        byte[] buffer = mPool == null ? new byte[length] : mPool.obtain(length);
+        if (mBuffer != null) {
+            System.arraycopy(mBuffer, 0, buffer, 0, mSize);
+            if (mPool != null) mPool.recycle(mBuffer);
+        }
+        mBuffer = buffer;
+    }
+
+    private void ensure(int count) {
+        if (mBuffer == null || mSize + count > mBuffer.length) {
+            int length = mBuffer == null ? ALIGNMENT : mBuffer.length + mBuffer.length / 2;
+            reserve(Math.max(length, mSize + count));
+        }
+    }
+
+    @Override
+    public void write(int b) {
+        ensure(1);
+        mBuffer[mSize++] = (byte) b;
+    }
+
+    @Override
+    public void write(@NonNull byte[] b, int off, int len) {
+        if (off < 0 || len < 0 || off + len > b.length) throw new IndexOutOfBoundsException();
+        ensure(len);
+        System.arraycopy(b, off, mBuffer, mSize, len);
+        mSize += len;
+    }
+
+    /**
+     * Returns the array that data was written to. Only the first {@link #size()}
+     * bytes are valid.
+     *
+     * @return the array, or null if nothing was written
+     */
+    @Nullable
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    /**
+     * Returns the number of bytes written.
+     *
+     * @return the size
+     */
+    int size() {
+        return mSize;
+    }
+
+    /**
+     * Returns a copy of the written data.
+     *
+     * @return the data
+     */
+    @NonNull
+    byte[] toByteArray() {
+        return mBuffer == null ? new byte[0] : Arrays.copyOf(mBuffer, mSize);
+    }
+
+    /**
+     * Discards the written data, keeping the array.
+     */
+    void reset() {
+        mSize = 0;
+    }
+
+    /**
+     * Gives the array back to the pool. This stream can still be used,
+     * but previous data and views should not be read anymore.
+     */
+    void release() {
+        if (mPool != null && mBuffer != null) mPool.recycle(mBuffer);
+        mBuffer = null;
+        mSize = 0;
+    }
+}
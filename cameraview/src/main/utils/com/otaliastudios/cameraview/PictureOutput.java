@@ -0,0 +1,110 @@
+package com.otaliastudios.cameraview;
+
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Where a captured picture should be written, instead of being passed to listeners as an array.
+ * This is passed back to {@link CameraListener#onPictureSaved(PictureOutput)}, so that listeners
+ * can tell which capture was written.
+ *
+ * Encoded data is written as it is, from the array it was encoded to, so no copy is made.
+ * Files are created or truncated, written and closed. Streams and channels belong to the caller:
+ * they are flushed, but not closed.
+ */
+public final class PictureOutput {
+
+    @Nullable private final File mFile;
+    @Nullable private final OutputStream mStream;
+    @Nullable private final WritableByteChannel mChannel;
+
+    private PictureOutput(@Nullable File file, @Nullable OutputStream stream, @Nullable WritableByteChannel channel) {
+        mFile = file;
+        mStream = stream;
+        mChannel = channel;
+    }
+
+    @NonNull
+    static PictureOutput of(@NonNull File file) {
+        return new PictureOutput(file, null, null);
+    }
+
+    @NonNull
+    static PictureOutput of(@NonNull OutputStream stream) {
+        return new PictureOutput(null, stream, null);
+    }
+
+    @NonNull
+    static PictureOutput of(@NonNull FileChannel channel) {
+        return new PictureOutput(null, null, channel);
+    }
+
+    /**
+     * Returns the destination file, or null if this is a stream or a channel.
+     *
+     * @return the file
+     */
+    @Nullable
+    public File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Returns the destination stream, or null if this is a file or a channel.
+     *
+     * @return the stream
+     */
+    @Nullable
+    public OutputStream getStream() {
+        return mStream;
+    }
+
+    /**
+     * Returns the destination channel, or null if this is a file or a stream.
+     *
+     * @return the channel
+     */
+    @Nullable
+    public WritableByteChannel getChannel() {
+        return mChannel;
+    }
+
+    /**
+     * Writes the first length bytes of the given array.
+     *
+     * @param data the encoded data
+     * @param length the data length
+     * @throws IOException if the destination throws
+     */
+    void write(@NonNull byte[] data, int length) throws IOException {
+        if (mStream != null) {
+            mStream.write(data, 0, length);
+            mStream.flush();
+        } else if (mChannel != null) {
+            writeFully(mChannel, ByteBuffer.wrap(data, 0, length));
+        } else if (mFile != null) {
+            FileOutputStream stream = new FileOutputStream(mFile);
+            try {
+                writeFully(stream.getChannel(), ByteBuffer.wrap(data, 0, length));
+            } finally {
+                stream.close();
+            }
+        }
+    }
+
+    // Channels might write less than asked, e.g. non-blocking ones.
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package com.otaliastudios.cameraview;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded, lock-free queue backed by pre-allocated arrays.
+ * Any number of threads can offer and poll at the same time, and neither operation allocates,
+ * which makes this suitable for hot paths like the preview frame callback.
+ *
+ * Each slot has a sequence number that tells whether it is ready to be written
+ * or to be read for the current lap of the ring. Producers and consumers claim
+ * positions with a compare-and-set, then publish the slot by updating its sequence.
+ *
+ * The capacity is rounded up to the next power of two.
+ *
+ * @param <T> the item type
+ */
+class RingQueue<T> {
+
+    private final int mMask;
+    private final AtomicReferenceArray<T> mItems;
+    private final AtomicLongArray mSequences;
+    private final AtomicLong mHead = new AtomicLong(0); // Next position to read.
+    private final AtomicLong mTail = new AtomicLong(0); // Next position to write.
+
+    RingQueue(int capacity) {
+        int size = 1;
+        while (size < capacity) size <<= 1;
+        mMask = size - 1;
+        mItems = new AtomicReferenceArray<>(size);
+        mSequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            mSequences.set(i, i);
+        }
+    }
+
+    /**
+     * Adds the item to the queue, if there is room for it.
+     *
+     * @param item the item to add
+     * @return true if the item was added, false if the queue was full
+     */
+    boolean offer(T item) {
+        long position = mTail.get();
+        while (true) {
+            int index = (int) (position & mMask);
+            long diff = mSequences.get(index) - position;
+            if (diff == 0) {
+                // The slot is free for this lap. Try to claim it.
+                if (mTail.compareAndSet(position, position + 1)) {
+                    mItems.set(index, item);
+                    mSequences.set(index, position + 1);
+                    return true;
+                }
+                position = mTail.get();
+            } else if (diff < 0) {
+                // The slot still holds an item from the previous lap.
+                return false;
+            } else {
+                // Another producer went further. Catch up.
+                position = mTail.get();
+            }
+        }
+    }
+
+    /**
+     * Removes and returns the oldest item in the queue.
+     *
+     * @return the item, or null if the queue was empty
+     */
+    T poll() {
+        long position = mHead.get();
+        while (true) {
+            int index = (int) (position & mMask);
+            long diff = mSequences.get(index) - (position + 1);
+            if (diff == 0) {
+                // The slot was published for this lap. Try to claim it.
+                if (mHead.compareAndSet(position, position + 1)) {
+                    T item = mItems.get(index);
+                    mItems.set(index, null);
+                    mSequences.set(index, position + mMask + 1);
+                    return item;
+                }
+                position = mHead.get();
+            } else if (diff < 0) {
+                // Nothing was published here yet.
+                return null;
+            } else {
+                // Another consumer went further. Catch up.
+                position = mHead.get();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of items in the queue. This is just an estimate
+     * if other threads are using the queue at the same time.
+     *
+     * @return the queue size
+     */
+    int size() {
+        long size = mTail.get() - mHead.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    int capacity() {
+        return mMask + 1;
+    }
+}
@@ -1,43 +1,536 @@
 package com.otaliastudios.cameraview;
 
+import android.support.annotation.NonNull;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Rotates NV21 data clockwise, optionally cropping, downscaling and mirroring it in the same pass.
+ *
+ * The Y plane and the half-resolution VU plane are rotated in separate passes, with a loop
+ * specialized for each angle. For 90 and 270 degrees, loops work on square tiles, so that
+ * both the rows being read and the columns being written stay in cache.
+ * For 180 degrees, each plane is just reversed.
+ *
+ * When cropping or mirroring, output tiles are instead filled by walking the input with
+ * a fixed step, so only the pixels that survive the crop are ever read.
+ * When downscaling by an integer factor, each output pixel is the average of a square block.
+ * This walk only depends on the plane strides, so transforms also accept any {@link YuvLayout}
+ * as input, e.g. NV12, YV12 or strided YUV_420_888 data. Their output is always NV21.
+ *
+ * The output can also be split in bands of rows, that are rotated in parallel.
+ * Bands never write the same bytes, so the output is the same as the serial one.
+ */
 class RotationHelper {
 
+    // Tile side, in pixels. 32x32 tiles of both planes fit comfortably in a L1 cache.
+    private final static int TILE = 32;
+
+    // Smaller frames are rotated serially by the pooled variant, since
+    // they take a few milliseconds and handing off to other threads is not free.
+    private final static int PARALLEL_MIN_PIXELS = 1280 * 720;
+    private final static int PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static Executor sExecutor;
 
+    // A share of the work, that can be run by any thread.
+    private interface Band {
+        void run(int band, int bands);
+    }
+
+    /**
+     * Rotates the given data into a new array. If rotation is 0, returns the input itself.
+     */
     static byte[] rotate(final byte[] yuv, final int width, final int height, final int rotation) {
         if (rotation == 0) return yuv;
+        final byte[] output = new byte[yuv.length];
+        rotate(yuv, width, height, rotation, output);
+        return output;
+    }
+
+    /**
+     * Rotates the given data into the output array, which must have room for
+     * width * height * 3 / 2 bytes. If rotation is 0, data is just copied.
+     */
+    static void rotate(final byte[] yuv, final int width, final int height, final int rotation,
+                       final byte[] output) {
+        checkInput(width, height, rotation);
+        checkOutput(output, width, height);
+        if (rotation == 0) {
+            System.arraycopy(yuv, 0, output, 0, width * height * 3 / 2);
+        } else {
+            rotateBand(yuv, output, width, height, rotation, 0, 1);
+        }
+    }
+
+    /**
+     * Same as {@link #rotate(byte[], int, int, int, byte[])}, but splits the output
+     * in the given number of bands. The calling thread rotates the first band, and the others
+     * are posted to the executor. This method returns when all bands are done.
+     * If the executor rejects a band, it is rotated by the calling thread.
+     */
+    static void rotate(final byte[] yuv, final int width, final int height, final int rotation,
+                       final byte[] output, @NonNull Executor executor, int bands) {
+        checkInput(width, height, rotation);
+        checkOutput(output, width, height);
+        if (bands <= 0) {
+            throw new IllegalArgumentException("Bands should be > 0");
+        }
+        // Bands are at least a tile high, or we would just pay for the hand off.
+        int rows = rotation % 180 == 0 ? height : width;
+        bands = Math.min(bands, rows / TILE);
+        if (rotation == 0 || bands <= 1) {
+            rotate(yuv, width, height, rotation, output);
+            return;
+        }
+        runBands(new Band() {
+            @Override
+            public void run(int band, int bands) {
+                rotateBand(yuv, output, width, height, rotation, band, bands);
+            }
+        }, executor, bands);
+    }
+
+    /**
+     * Rotates the given data, keeps the given crop, which is in rotated coordinates,
+     * scales it down by the given factor, and mirrors it horizontally if needed.
+     * The output is (cropWidth / scale) x (cropHeight / scale) and is taken from the pool,
+     * which it should be given back to when done.
+     *
+     * Big crops are transformed in parallel, using all the available cores.
+     */
+    static byte[] transform(final byte[] yuv, final YuvLayout layout, final int rotation,
+                            final int cropX, final int cropY, final int cropWidth, final int cropHeight,
+                            final int scale, final boolean mirror, final BufferPool pool) {
+        checkScale(cropWidth, cropHeight, scale);
+        final byte[] output = pool.obtain((cropWidth / scale) * (cropHeight / scale) * 3 / 2);
+        if (PARALLELISM > 1 && cropWidth * cropHeight >= PARALLEL_MIN_PIXELS) {
+            transform(yuv, layout, rotation, cropX, cropY, cropWidth, cropHeight, scale, mirror,
+                    output, getExecutor(), PARALLELISM);
+        } else {
+            transform(yuv, layout, rotation, cropX, cropY, cropWidth, cropHeight, scale, mirror, output);
+        }
+        return output;
+    }
+
+    /**
+     * Rotates the given data, keeps the given crop, which is in rotated coordinates,
+     * scales it down by the given factor, and mirrors it horizontally if needed.
+     * Crop bounds must be even, crop sizes must be multiples of 2 * scale, and the output
+     * must have room for (cropWidth / scale) * (cropHeight / scale) * 3 / 2 bytes.
+     * The input can have any layout, while the output is always NV21.
+     */
+    static void transform(final byte[] yuv, final YuvLayout layout, final int rotation,
+                          final int cropX, final int cropY, final int cropWidth, final int cropHeight,
+                          final int scale, final boolean mirror, final byte[] output) {
+        final int width = layout.getWidth();
+        final int height = layout.getHeight();
+        checkInput(width, height, rotation);
+        checkData(yuv, layout);
+        checkCrop(width, height, rotation, cropX, cropY, cropWidth, cropHeight);
+        checkScale(cropWidth, cropHeight, scale);
+        checkOutput(output, cropWidth / scale, cropHeight / scale);
+        if (layout.isNv21() && isRotationOnly(width, height, rotation, cropX, cropY, cropWidth, cropHeight, scale, mirror)) {
+            rotate(yuv, width, height, rotation, output);
+        } else {
+            transformBand(yuv, layout, output, rotation,
+                    cropX, cropY, cropWidth, cropHeight, scale, mirror, 0, 1);
+        }
+    }
+
+    /**
+     * Same as {@link #transform(byte[], YuvLayout, int, int, int, int, int, int, boolean, byte[])},
+     * but splits the output in the given number of bands, like
+     * {@link #rotate(byte[], int, int, int, byte[], Executor, int)} does.
+     */
+    static void transform(final byte[] yuv, final YuvLayout layout, final int rotation,
+                          final int cropX, final int cropY, final int cropWidth, final int cropHeight,
+                          final int scale, final boolean mirror,
+                          final byte[] output, @NonNull Executor executor, int bands) {
+        final int width = layout.getWidth();
+        final int height = layout.getHeight();
+        checkInput(width, height, rotation);
+        checkData(yuv, layout);
+        checkCrop(width, height, rotation, cropX, cropY, cropWidth, cropHeight);
+        checkScale(cropWidth, cropHeight, scale);
+        checkOutput(output, cropWidth / scale, cropHeight / scale);
+        if (bands <= 0) {
+            throw new IllegalArgumentException("Bands should be > 0");
+        }
+        if (layout.isNv21() && isRotationOnly(width, height, rotation, cropX, cropY, cropWidth, cropHeight, scale, mirror)) {
+            rotate(yuv, width, height, rotation, output, executor, bands);
+            return;
+        }
+        // Bands read at least a tile of input rows, and write at least two output rows.
+        bands = Math.min(bands, Math.min(cropHeight / TILE, cropHeight / scale / 2));
+        if (bands <= 1) {
+            transformBand(yuv, layout, output, rotation,
+                    cropX, cropY, cropWidth, cropHeight, scale, mirror, 0, 1);
+            return;
+        }
+        runBands(new Band() {
+            @Override
+            public void run(int band, int bands) {
+                transformBand(yuv, layout, output, rotation,
+                        cropX, cropY, cropWidth, cropHeight, scale, mirror, band, bands);
+            }
+        }, executor, bands);
+    }
+
+    private static void checkInput(int width, int height, int rotation) {
         if (rotation % 90 != 0 || rotation < 0 || rotation > 270) {
             throw new IllegalArgumentException("0 <= rotation < 360, rotation % 90 == 0");
         }
-        final byte[] output = new byte[yuv.length];
-        final int frameSize = width * height;
-        final boolean swap = rotation % 180 != 0;
-        final boolean xflip = rotation % 270 != 0;
-        final boolean yflip = rotation >= 180;
+        if (width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("NV21 width and height should be even.");
+        }
+    }
 
-        for (int j = 0; j < height; j++) {
-            for (int i = 0; i < width; i++) {
-                final int yIn = j * width + i;
-                final int uIn = frameSize + (j >> 1) * width + (i & ~1);
-                final int vIn = uIn + 1;
+    private static void checkData(byte[] yuv, YuvLayout layout) {
+        if (yuv.length < layout.getDataSize()) {
+            throw new IllegalArgumentException("Data is too small for its layout.");
+        }
+    }
 
-                final int wOut = swap ? height : width;
-                final int hOut = swap ? width : height;
-                final int iSwapped = swap ? j : i;
-                final int jSwapped = swap ? i : j;
-                final int iOut = xflip ? wOut - iSwapped - 1 : iSwapped;
-                final int jOut = yflip ? hOut - jSwapped - 1 : jSwapped;
+    private static void checkOutput(byte[] output, int width, int height) {
+        if (output.length < width * height * 3 / 2) {
+            throw new IllegalArgumentException("Output should have room for the whole frame.");
+        }
+    }
+
+    private static void checkCrop(int width, int height, int rotation,
+                                  int cropX, int cropY, int cropWidth, int cropHeight) {
+        int rotatedWidth = rotation % 180 == 0 ? width : height;
+        int rotatedHeight = rotation % 180 == 0 ? height : width;
+        if (cropX < 0 || cropY < 0 || cropWidth <= 0 || cropHeight <= 0
+                || cropX + cropWidth > rotatedWidth || cropY + cropHeight > rotatedHeight) {
+            throw new IllegalArgumentException("Crop should be inside the rotated frame.");
+        }
+        if (cropX % 2 != 0 || cropY % 2 != 0 || cropWidth % 2 != 0 || cropHeight % 2 != 0) {
+            throw new IllegalArgumentException("Crop bounds should be even.");
+        }
+    }
 
-                final int yOut = jOut * wOut + iOut;
-                final int uOut = frameSize + (jOut >> 1) * wOut + (iOut & ~1);
-                final int vOut = uOut + 1;
+    private static void checkScale(int cropWidth, int cropHeight, int scale) {
+        if (scale <= 0) {
+            throw new IllegalArgumentException("Scale should be > 0");
+        }
+        if (cropWidth % (2 * scale) != 0 || cropHeight % (2 * scale) != 0) {
+            throw new IllegalArgumentException("Crop sizes should be multiples of 2 * scale.");
+        }
+    }
+
+    private static boolean isRotationOnly(int width, int height, int rotation,
+                                          int cropX, int cropY, int cropWidth, int cropHeight,
+                                          int scale, boolean mirror) {
+        int rotatedWidth = rotation % 180 == 0 ? width : height;
+        int rotatedHeight = rotation % 180 == 0 ? height : width;
+        return !mirror && scale == 1 && cropX == 0 && cropY == 0 && cropWidth == rotatedWidth && cropHeight == rotatedHeight;
+    }
 
-                output[yOut] = (byte) (0xff & yuv[yIn]);
-                output[uOut] = (byte) (0xff & yuv[uIn]);
-                output[vOut] = (byte) (0xff & yuv[vIn]);
+    // Runs the first band in the calling thread, posts the others, and waits for them.
+    private static void runBands(final Band band, @NonNull Executor executor, int bands) {
+        final CountDownLatch latch = new CountDownLatch(bands - 1);
+        for (int i = 1; i < bands; i++) {
+            final int thisBand = i;
+            final int allBands = bands;
+            Runnable task = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        band.run(thisBand, allBands);
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            };
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.run();
             }
         }
+        band.run(0, bands);
 
-        return output;
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                // Other bands are writing to the output, so we must wait anyway.
+                interrupted = true;
+            }
+        }
+        if (interrupted) Thread.currentThread().interrupt();
+    }
+
+    private static synchronized Executor getExecutor() {
+        if (sExecutor == null) {
+            final AtomicInteger count = new AtomicInteger(0);
+            sExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                @Override
+                public Thread newThread(@NonNull Runnable runnable) {
+                    Thread thread = new Thread(runnable, "RotationHelper-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sExecutor;
+    }
+
+    // Rotates one of the output bands. Output rows are input columns for 90 and 270,
+    // and input rows for 180, so we just split these in an even number of lines,
+    // which keeps the luma and chroma bands aligned.
+    private static void rotateBand(byte[] input, byte[] output, int width, int height, int rotation,
+                                   int band, int bands) {
+        int lines = (rotation == 180 ? height : width) / 2;
+        int from = 2 * (lines * band / bands);
+        int to = 2 * (lines * (band + 1) / bands);
+        switch (rotation) {
+            case 90:
+                rotateLuma90(input, output, width, height, from, to);
+                rotateChroma90(input, output, width, height, from / 2, to / 2);
+                break;
+            case 180:
+                rotateLuma180(input, output, width, height, from, to);
+                rotateChroma180(input, output, width, height, from / 2, to / 2);
+                break;
+            case 270:
+                rotateLuma270(input, output, width, height, from, to);
+                rotateChroma270(input, output, width, height, from / 2, to / 2);
+                break;
+        }
+    }
+
+    // Transforms one of the output bands. Bands hold an even number of rows,
+    // which keeps the luma and chroma bands aligned. Output chroma is always VU,
+    // so V samples are read at the V plane position, and U samples at a fixed distance.
+    private static void transformBand(byte[] input, YuvLayout layout, byte[] output, int rotation,
+                                      int cropX, int cropY, int cropWidth, int cropHeight,
+                                      int scale, boolean mirror, int band, int bands) {
+        int width = layout.getWidth();
+        int height = layout.getHeight();
+        int outWidth = cropWidth / scale;
+        int outHeight = cropHeight / scale;
+        int lines = outHeight / 2;
+        int from = 2 * (lines * band / bands);
+        int to = 2 * (lines * (band + 1) / bands);
+        transformPlane(input, layout.getYOffset(), width, height, layout.getYRowStride(), 1, 0,
+                output, 0, outWidth, rotation, cropX, cropY, cropWidth, scale, mirror, from, to);
+        transformPlane(input, layout.getVOffset(), width / 2, height / 2,
+                layout.getChromaRowStride(), layout.getChromaPixelStride(),
+                layout.getUOffset() - layout.getVOffset(),
+                output, outWidth * outHeight, outWidth,
+                rotation, cropX / 2, cropY / 2, cropWidth / 2, scale, mirror, from / 2, to / 2);
+    }
+
+    // Fills output rows in [fromRow, toRow) of a plane. All coordinates are in plane pixels,
+    // that are the given number of bytes apart in the input. Moving right or down in the crop
+    // always moves the input index by a fixed step, that depends on rotation and mirroring.
+    // If second is 0, output pixels are one byte. Otherwise they are two, and the second
+    // is read at this distance from the first, e.g. 1 for NV21 chroma.
+    private static void transformPlane(byte[] input, int inBase, int inWidth, int inHeight,
+                                       int inStride, int pixel, int second,
+                                       byte[] output, int outBase, int outStride,
+                                       int rotation, int cropX, int cropY, int cropWidth,
+                                       int scale, boolean mirror, int fromRow, int toRow) {
+        final int outPixel = second == 0 ? 1 : 2;
+        // The rotated position of the first cropped pixel, and how it moves along a row.
+        final int firstX = mirror ? cropX + cropWidth - 1 : cropX;
+        final int sign = mirror ? -1 : 1;
+        int origin, step, rowStep;
+        switch (rotation) {
+            case 0:
+                origin = cropY * inStride + firstX * pixel;
+                step = sign * pixel;
+                rowStep = inStride;
+                break;
+            case 90:
+                origin = (inHeight - 1 - firstX) * inStride + cropY * pixel;
+                step = -sign * inStride;
+                rowStep = pixel;
+                break;
+            case 180:
+                origin = (inHeight - 1 - cropY) * inStride + (inWidth - 1 - firstX) * pixel;
+                step = -sign * pixel;
+                rowStep = -inStride;
+                break;
+            default:
+                origin = firstX * inStride + (inWidth - 1 - cropY) * pixel;
+                step = sign * inStride;
+                rowStep = -pixel;
+                break;
+        }
+        origin += inBase;
+        if (scale > 1) {
+            scalePlane(input, origin, step, rowStep, second, output, outBase, outStride,
+                    cropWidth / scale, scale, fromRow, toRow);
+            return;
+        }
+
+        for (int tileY = fromRow; tileY < toRow; tileY += TILE) {
+            final int endY = Math.min(tileY + TILE, toRow);
+            for (int tileX = 0; tileX < cropWidth; tileX += TILE) {
+                final int endX = Math.min(tileX + TILE, cropWidth);
+                for (int y = tileY; y < endY; y++) {
+                    int in = origin + y * rowStep + tileX * step;
+                    int out = outBase + y * outStride + tileX * outPixel;
+                    if (second == 0) {
+                        for (int x = tileX; x < endX; x++) {
+                            output[out++] = input[in];
+                            in += step;
+                        }
+                    } else {
+                        for (int x = tileX; x < endX; x++) {
+                            output[out++] = input[in];
+                            output[out++] = input[in + second];
+                            in += step;
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // Same as the transformPlane loop, but each output pixel is the rounded average of a
+    // scale x scale block of cropped pixels. Tiles are measured in output pixels.
+    private static void scalePlane(byte[] input, int origin, int step, int rowStep, int second,
+                                   byte[] output, int outBase, int outStride,
+                                   int outWidth, int scale, int fromRow, int toRow) {
+        final int pixel = second == 0 ? 1 : 2;
+        final int area = scale * scale;
+        final int half = area / 2;
+        final int blockStep = scale * step;
+        final int blockRowStep = scale * rowStep;
+        for (int tileY = fromRow; tileY < toRow; tileY += TILE) {
+            final int endY = Math.min(tileY + TILE, toRow);
+            for (int tileX = 0; tileX < outWidth; tileX += TILE) {
+                final int endX = Math.min(tileX + TILE, outWidth);
+                for (int y = tileY; y < endY; y++) {
+                    int in = origin + y * blockRowStep + tileX * blockStep;
+                    int out = outBase + y * outStride + tileX * pixel;
+                    for (int x = tileX; x < endX; x++) {
+                        int first = 0, other = 0;
+                        for (int j = 0, row = in; j < scale; j++, row += rowStep) {
+                            for (int i = 0, index = row; i < scale; i++, index += step) {
+                                first += input[index] & 0xFF;
+                                if (pixel == 2) other += input[index + second] & 0xFF;
+                            }
+                        }
+                        output[out++] = (byte) ((first + half) / area);
+                        if (pixel == 2) output[out++] = (byte) ((other + half) / area);
+                        in += blockStep;
+                    }
+                }
+            }
+        }
     }
-}
 
+    // (x, y) goes to (height - 1 - y, x). Output rows are height bytes long.
+    // Only input columns in [fromX, toX) are rotated.
+    private static void rotateLuma90(byte[] input, byte[] output, int width, int height, int fromX, int toX) {
+        for (int tileY = 0; tileY < height; tileY += TILE) {
+            final int endY = Math.min(tileY + TILE, height);
+            for (int tileX = fromX; tileX < toX; tileX += TILE) {
+                final int endX = Math.min(tileX + TILE, toX);
+                for (int y = tileY; y < endY; y++) {
+                    int in = y * width + tileX;
+                    int out = tileX * height + (height - 1 - y);
+                    for (int x = tileX; x < endX; x++) {
+                        output[out] = input[in++];
+                        out += height;
+                    }
+                }
+            }
+        }
+    }
+
+    // Same as luma, but pixels are VU pairs and the plane has half the size.
+    private static void rotateChroma90(byte[] input, byte[] output, int width, int height, int fromX, int toX) {
+        final int base = width * height;
+        final int chromaHeight = height / 2;
+        for (int tileY = 0; tileY < chromaHeight; tileY += TILE) {
+            final int endY = Math.min(tileY + TILE, chromaHeight);
+            for (int tileX = fromX; tileX < toX; tileX += TILE) {
+                final int endX = Math.min(tileX + TILE, toX);
+                for (int y = tileY; y < endY; y++) {
+                    int in = base + y * width + 2 * tileX;
+                    int out = base + tileX * height + 2 * (chromaHeight - 1 - y);
+                    for (int x = tileX; x < endX; x++) {
+                        output[out] = input[in++];
+                        output[out + 1] = input[in++];
+                        out += height;
+                    }
+                }
+            }
+        }
+    }
+
+    // (x, y) goes to (width - 1 - x, height - 1 - y), which just reverses the plane.
+    // Only input rows in [fromY, toY) are rotated.
+    private static void rotateLuma180(byte[] input, byte[] output, int width, int height, int fromY, int toY) {
+        final int last = width * height - 1;
+        final int end = toY * width;
+        for (int in = fromY * width, out = last - in; in < end; in++, out--) {
+            output[out] = input[in];
+        }
+    }
+
+    // Same as luma, but pixels are VU pairs, whose order is kept.
+    private static void rotateChroma180(byte[] input, byte[] output, int width, int height, int fromY, int toY) {
+        final int base = width * height;
+        final int last = base + base / 2 - 2;
+        final int end = base + toY * width;
+        for (int in = base + fromY * width, out = last - (in - base); in < end; in += 2, out -= 2) {
+            output[out] = input[in];
+            output[out + 1] = input[in + 1];
+        }
+    }
+
+    // (x, y) goes to (y, width - 1 - x). Output rows are height bytes long.
+    // Only input columns in [fromX, toX) are rotated.
+    private static void rotateLuma270(byte[] input, byte[] output, int width, int height, int fromX, int toX) {
+        for (int tileY = 0; tileY < height; tileY += TILE) {
+            final int endY = Math.min(tileY + TILE, height);
+            for (int tileX = fromX; tileX < toX; tileX += TILE) {
+                final int endX = Math.min(tileX + TILE, toX);
+                for (int y = tileY; y < endY; y++) {
+                    int in = y * width + tileX;
+                    int out = (width - 1 - tileX) * height + y;
+                    for (int x = tileX; x < endX; x++) {
+                        output[out] = input[in++];
+                        out -= height;
+                    }
+                }
+            }
+        }
+    }
+
+    // Same as luma, but pixels are VU pairs and the plane has half the size.
+    private static void rotateChroma270(byte[] input, byte[] output, int width, int height, int fromX, int toX) {
+        final int base = width * height;
+        final int chromaWidth = width / 2;
+        final int chromaHeight = height / 2;
+        for (int tileY = 0; tileY < chromaHeight; tileY += TILE) {
+            final int endY = Math.min(tileY + TILE, chromaHeight);
+            for (int tileX = fromX; tileX < toX; tileX += TILE) {
+                final int endX = Math.min(tileX + TILE, toX);
+                for (int y = tileY; y < endY; y++) {
+                    int in = base + y * width + 2 * tileX;
+                    int out = base + (chromaWidth - 1 - tileX) * height + 2 * y;
+                    for (int x = tileX; x < endX; x++) {
+                        output[out] = input[in++];
+                        output[out + 1] = input[in++];
+                        out -= height;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -2,16 +2,18 @@ package com.otaliastudios.cameraview;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.support.annotation.NonNull;
 
 import java.lang.ref.WeakReference;
 import java.util.WeakHashMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 
 /**
  * Class holding a background handler.
  * We want them to survive configuration changes if there's still job to do.
  */
-class WorkerHandler {
+class WorkerHandler implements Executor {
 
     private final static CameraLogger LOG = CameraLogger.create(WorkerHandler.class.getSimpleName());
     private final static ConcurrentHashMap<String, WeakReference<WorkerHandler>> sCache = new ConcurrentHashMap<>(4);
@@ -61,6 +63,11 @@ class WorkerHandler {
         mHandler.post(runnable);
     }
 
+    @Override
+    public void execute(@NonNull Runnable command) {
+        post(command);
+    }
+
     public Thread getThread() {
         return mThread;
     }
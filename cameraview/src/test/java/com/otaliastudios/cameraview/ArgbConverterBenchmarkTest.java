@@ -0,0 +1,76 @@
+package com.otaliastudios.cameraview;
+
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures {@link ArgbConverter} throughput at common preview sizes, and checks that
+ * conversions do not allocate in the calling thread.
+ * This relies on the HotSpot per-thread allocation counter, and is skipped on other JVMs.
+ */
+public class ArgbConverterBenchmarkTest {
+
+    private final static String TAG = ArgbConverterBenchmarkTest.class.getSimpleName();
+    private final static CameraLogger LOG = CameraLogger.create(TAG);
+
+    private final static int WARMUP = 20;
+    private final static int FRAMES = 50;
+    private final static int ROUNDS = 3;
+
+    private static long allocatedBytes(ThreadMXBean bean) {
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void run(ThreadMXBean bean, int width, int height, int threads) {
+        ArgbConverter converter = new ArgbConverter(threads);
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        int[] output = new int[width * height];
+        for (int i = 0; i < WARMUP; i++) {
+            converter.convert(nv21, width, height, output);
+        }
+        // The JVM itself might allocate once in a while, so we take the best of a few rounds.
+        long allocated = Long.MAX_VALUE;
+        for (int round = 0; round < ROUNDS && allocated > 0; round++) {
+            long before = allocatedBytes(bean);
+            long start = System.nanoTime();
+            for (int i = 0; i < FRAMES; i++) {
+                converter.convert(nv21, width, height, output);
+            }
+            long elapsed = System.nanoTime() - start;
+            allocated = allocatedBytes(bean) - before;
+            LOG.v("run:", width + "x" + height, "threads:", threads,
+                    "us per frame:", elapsed / FRAMES / 1000,
+                    "fps:", FRAMES * 1000000000L / elapsed,
+                    "bytes allocated:", allocated);
+        }
+        converter.release();
+        assertEquals(0, allocated);
+    }
+
+    @Test
+    public void testThroughput() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        Assume.assumeTrue(((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+        ((com.sun.management.ThreadMXBean) bean).setThreadAllocatedMemoryEnabled(true);
+
+        // Results are logged at verbose level, which is filtered out by default.
+        int level = CameraLogger.getLogLevel();
+        CameraLogger.setLogLevel(CameraLogger.LEVEL_VERBOSE);
+        try {
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+            run(bean, 1280, 720, 1);
+            run(bean, 1280, 720, threads);
+            run(bean, 1920, 1080, 1);
+            run(bean, 1920, 1080, threads);
+        } finally {
+            CameraLogger.setLogLevel(level);
+        }
+    }
+}
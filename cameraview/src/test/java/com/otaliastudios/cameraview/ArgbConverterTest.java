@@ -0,0 +1,159 @@
+package com.otaliastudios.cameraview;
+
+
+import android.graphics.ImageFormat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class ArgbConverterTest {
+
+    private ArgbConverter converter;
+
+    @Before
+    public void setUp() {
+        converter = new ArgbConverter(3);
+    }
+
+    @After
+    public void tearDown() {
+        converter.release();
+        converter = null;
+    }
+
+    private static byte[] randomNv21(int width, int height) {
+        byte[] data = new byte[width * height * 3 / 2];
+        new Random(width * height).nextBytes(data);
+        return data;
+    }
+
+    // A floating point, full range BT.601 converter, to compare against.
+    private static int[] reference(byte[] nv21, int width, int height) {
+        int[] output = new int[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int chroma = width * height + (y / 2) * width + (x / 2) * 2;
+                float luma = nv21[y * width + x] & 0xFF;
+                float v = (nv21[chroma] & 0xFF) - 128;
+                float u = (nv21[chroma + 1] & 0xFF) - 128;
+                int r = clamp(Math.round(luma + 1.402f * v));
+                int g = clamp(Math.round(luma - 0.714136f * v - 0.344136f * u));
+                int b = clamp(Math.round(luma + 1.772f * u));
+                output[y * width + x] = 0xFF000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        return output;
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+
+    private static void assertClose(int[] expected, int[] actual) {
+        assertEquals(expected.length, actual.length);
+        for (int i = 0; i < expected.length; i++) {
+            for (int shift = 0; shift <= 24; shift += 8) {
+                int e = (expected[i] >> shift) & 0xFF;
+                int a = (actual[i] >> shift) & 0xFF;
+                assertTrue("Pixel " + i + " differs: " + Integer.toHexString(expected[i])
+                        + " vs " + Integer.toHexString(actual[i]), Math.abs(e - a) <= 1);
+            }
+        }
+    }
+
+    @Test
+    public void testReference() {
+        int width = 64, height = 48;
+        byte[] nv21 = randomNv21(width, height);
+        int[] output = new int[width * height];
+        new ArgbConverter().convert(nv21, width, height, output);
+        assertClose(reference(nv21, width, height), output);
+    }
+
+    @Test
+    public void testFullRange() {
+        // Luma is not scaled: black and white are 0 and 255, as in JPEG.
+        byte[] nv21 = new byte[]{ 0, (byte) 255, 0, (byte) 255, (byte) 128, (byte) 128 };
+        int[] output = new int[4];
+        new ArgbConverter().convert(nv21, 2, 2, output);
+        assertArrayEquals(new int[]{ 0xFF000000, 0xFFFFFFFF, 0xFF000000, 0xFFFFFFFF }, output);
+    }
+
+    @Test
+    public void testMultithreaded() {
+        int width = 80, height = 62; // Rows do not split evenly across threads.
+        byte[] nv21 = randomNv21(width, height);
+        int[] single = new int[width * height];
+        int[] multi = new int[width * height];
+        ArgbConverter.convertRows(nv21, width, height, single, 0, height);
+        for (int i = 0; i < 3; i++) {
+            converter.convert(nv21, width, height, multi);
+            assertArrayEquals(single, multi);
+        }
+    }
+
+    @Test
+    public void testFrame() {
+        int width = 16, height = 8;
+        byte[] nv21 = randomNv21(width, height);
+        Frame frame = new Frame(mock(FrameManager.class));
+        frame.set(nv21, 0, 0, new Size(width, height), ImageFormat.NV21);
+        int[] output = converter.convert(frame);
+        assertClose(reference(nv21, width, height), output);
+        assertTrue(output == converter.convert(frame));
+    }
+
+    @Test
+    public void testLayouts() {
+        int width = 66, height = 38;
+        byte[] nv21 = randomNv21(width, height);
+        int[] expected = new int[width * height];
+        converter.convert(nv21, width, height, expected);
+        YuvLayout[] layouts = new YuvLayout[]{
+                YuvLayout.nv12(width, height),
+                YuvLayout.yv12(width, height),
+                YuvLayoutTest.strided(width, height)
+        };
+        for (YuvLayout layout : layouts) {
+            byte[] data = YuvLayoutTest.repack(nv21, layout);
+            int[] output = new int[width * height];
+            converter.convert(data, layout, output);
+            assertArrayEquals(expected, output);
+
+            Frame frame = new Frame(mock(FrameManager.class));
+            frame.set(data, 0, 0, new Size(width, height), layout);
+            assertArrayEquals(expected, converter.convert(frame));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownFormat() {
+        Frame frame = new Frame(mock(FrameManager.class));
+        frame.set(new byte[32], 0, 0, new Size(4, 4), ImageFormat.YUY2);
+        converter.convert(frame);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOddSize() {
+        converter.convert(new byte[100], 5, 4, new int[20]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSmallOutput() {
+        converter.convert(new byte[24], 4, 4, new int[15]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleased() {
+        converter.release();
+        converter.convert(new byte[24], 4, 4, new int[16]);
+    }
+}
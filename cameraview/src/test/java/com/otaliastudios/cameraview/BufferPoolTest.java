@@ -0,0 +1,71 @@
+package com.otaliastudios.cameraview;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testObtain() {
+        BufferPool pool = new BufferPool(100);
+        byte[] buffer = pool.obtain(10);
+        assertEquals(10, buffer.length);
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testRecycle() {
+        BufferPool pool = new BufferPool(100);
+        byte[] buffer = pool.obtain(10);
+        pool.recycle(buffer);
+        assertEquals(10, pool.getPooledBytes());
+
+        // Different size should not match.
+        assertNotSame(buffer, pool.obtain(20));
+        assertSame(buffer, pool.obtain(10));
+        assertEquals(0, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testManyLengths() {
+        BufferPool pool = new BufferPool(10000);
+        byte[][] buffers = new byte[10][];
+        for (int length = 1; length <= 9; length++) {
+            buffers[length] = new byte[length];
+            pool.recycle(buffers[length]);
+        }
+        // There are only 8 buckets, so the oldest length was dropped.
+        assertEquals(44, pool.getPooledBytes());
+        assertNotSame(buffers[1], pool.obtain(1));
+        assertSame(buffers[2], pool.obtain(2));
+        assertSame(buffers[9], pool.obtain(9));
+        assertEquals(33, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testBudget() {
+        BufferPool pool = new BufferPool(15);
+        byte[] first = pool.obtain(10);
+        byte[] second = pool.obtain(10);
+        pool.recycle(first);
+        pool.recycle(second);
+        assertEquals(10, pool.getPooledBytes());
+        assertSame(first, pool.obtain(10));
+        assertNotSame(second, pool.obtain(10));
+    }
+
+    @Test
+    public void testSetBudget() {
+        BufferPool pool = new BufferPool(100);
+        pool.recycle(new byte[50]);
+        pool.setBudget(80);
+        assertEquals(50, pool.getPooledBytes());
+        pool.setBudget(20);
+        assertEquals(0, pool.getPooledBytes());
+        assertEquals(20, pool.getBudget());
+    }
+}
@@ -0,0 +1,184 @@
+package com.otaliastudios.cameraview;
+
+
+import android.support.media.ExifInterface;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class ExifUtilsTest {
+
+    private final static byte[] SOI = new byte[]{ (byte) 0xFF, (byte) 0xD8 };
+    private final static byte[] APP0 = new byte[]{ (byte) 0xFF, (byte) 0xE0, 0, 6, 'J', 'F', 'I', 'F' };
+    private final static byte[] DQT = new byte[]{ (byte) 0xFF, (byte) 0xDB, 0, 4, 1, 2, (byte) 0xFF, (byte) 0xD9 };
+
+    private static byte[] concat(byte[]... arrays) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] array : arrays) out.write(array, 0, array.length);
+        return out.toByteArray();
+    }
+
+    // Writes the data in chunks of the given size.
+    private static byte[] tag(byte[] jpeg, int orientation, int chunk) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream stream = ExifUtils.withOrientation(out, orientation);
+        for (int i = 0; i < jpeg.length; i += chunk) {
+            int length = Math.min(chunk, jpeg.length - i);
+            if (length == 1) {
+                stream.write(jpeg[i]);
+            } else {
+                stream.write(jpeg, i, length);
+            }
+        }
+        stream.close();
+        return out.toByteArray();
+    }
+
+    // An EXIF segment with dimensions in IFD0 and in the Exif IFD, with both SHORT and LONG
+    // values, and an orientation tag, as camera pictures have.
+    private static byte[] exif(ByteOrder order, int width, int height, int orientation) {
+        ByteBuffer buffer = ByteBuffer.allocate(10 + 8 + 2 + 4 * 12 + 4 + 2 + 2 * 12 + 4);
+        buffer.put(new byte[]{ (byte) 0xFF, (byte) 0xE1 });
+        buffer.putShort((short) (buffer.capacity() - 2));
+        buffer.put(new byte[]{ 'E', 'x', 'i', 'f', 0, 0 });
+        buffer.order(order);
+        buffer.put(order == ByteOrder.BIG_ENDIAN ? new byte[]{ 'M', 'M' } : new byte[]{ 'I', 'I' });
+        buffer.putShort((short) 42).putInt(8);
+        buffer.putShort((short) 4);
+        buffer.putShort((short) 0x0100).putShort((short) 3).putInt(1).putShort((short) width).putShort((short) 0);
+        buffer.putShort((short) 0x0101).putShort((short) 4).putInt(1).putInt(height);
+        buffer.putShort((short) 0x0112).putShort((short) 3).putInt(1).putShort((short) orientation).putShort((short) 0);
+        buffer.putShort((short) 0x8769).putShort((short) 4).putInt(1).putInt(8 + 2 + 4 * 12 + 4);
+        buffer.putInt(0);
+        buffer.putShort((short) 2);
+        buffer.putShort((short) 0xA002).putShort((short) 4).putInt(1).putInt(width);
+        buffer.putShort((short) 0xA003).putShort((short) 3).putInt(1).putShort((short) height).putShort((short) 0);
+        buffer.putInt(0);
+        return buffer.array();
+    }
+
+    @Test
+    public void testGetOrientationTag() {
+        assertEquals(ExifInterface.ORIENTATION_NORMAL, ExifUtils.getOrientationTag(0, false));
+        assertEquals(ExifInterface.ORIENTATION_ROTATE_90, ExifUtils.getOrientationTag(90, false));
+        assertEquals(ExifInterface.ORIENTATION_TRANSPOSE, ExifUtils.getOrientationTag(90, true));
+        assertEquals(ExifInterface.ORIENTATION_FLIP_VERTICAL, ExifUtils.getOrientationTag(180, true));
+        assertEquals(ExifInterface.ORIENTATION_TRANSVERSE, ExifUtils.getOrientationTag(270, true));
+    }
+
+    @Test
+    public void testGetOrientationSegment() {
+        byte[] segment = ExifUtils.getOrientationSegment(ExifInterface.ORIENTATION_ROTATE_90);
+        // The length field counts everything but the marker.
+        assertEquals(segment.length - 2, (segment[2] & 0xFF) << 8 | (segment[3] & 0xFF));
+        assertEquals(0, segment[segment.length - 8]);
+        assertEquals(6, segment[segment.length - 7]);
+    }
+
+    @Test
+    public void testWithOrientation_jfif() throws IOException {
+        byte[] segment = ExifUtils.getOrientationSegment(ExifInterface.ORIENTATION_ROTATE_270);
+        byte[] jpeg = concat(SOI, APP0, DQT);
+        byte[] expected = concat(SOI, APP0, segment, DQT);
+        for (int chunk = 1; chunk <= jpeg.length; chunk++) {
+            assertArrayEquals("Chunk " + chunk, expected, tag(jpeg, ExifInterface.ORIENTATION_ROTATE_270, chunk));
+        }
+    }
+
+    @Test
+    public void testWithOrientation_noJfif() throws IOException {
+        byte[] segment = ExifUtils.getOrientationSegment(ExifInterface.ORIENTATION_FLIP_HORIZONTAL);
+        byte[] jpeg = concat(SOI, DQT);
+        byte[] expected = concat(SOI, segment, DQT);
+        for (int chunk = 1; chunk <= jpeg.length; chunk++) {
+            assertArrayEquals("Chunk " + chunk, expected, tag(jpeg, ExifInterface.ORIENTATION_FLIP_HORIZONTAL, chunk));
+        }
+    }
+
+    @Test
+    public void testWithOrientation_tooShort() throws IOException {
+        byte[] data = new byte[]{ 1, 2, 3 };
+        assertArrayEquals(data, tag(data, ExifInterface.ORIENTATION_ROTATE_90, 1));
+    }
+
+    @Test
+    public void testFindExifSegment() {
+        byte[] segment = exif(ByteOrder.BIG_ENDIAN, 40, 30, ExifInterface.ORIENTATION_ROTATE_90);
+        byte[] jpeg = concat(SOI, APP0, segment, DQT);
+        assertEquals(SOI.length + APP0.length, ExifUtils.findExifSegment(jpeg));
+        assertArrayEquals(segment, ExifUtils.getExifSegment(jpeg));
+        assertEquals(-1, ExifUtils.findExifSegment(concat(SOI, APP0, DQT)));
+        assertNull(ExifUtils.getExifSegment(concat(SOI, DQT)));
+        assertEquals(-1, ExifUtils.findExifSegment(new byte[]{ 1, 2, 3 }));
+    }
+
+    @Test
+    public void testReadOrientation() {
+        for (ByteOrder order : new ByteOrder[]{ ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+            byte[] segment = exif(order, 40, 30, ExifInterface.ORIENTATION_ROTATE_270);
+            assertEquals(ExifInterface.ORIENTATION_ROTATE_270, ExifUtils.readOrientation(segment, 0));
+            byte[] jpeg = concat(SOI, segment, DQT);
+            assertEquals(ExifInterface.ORIENTATION_ROTATE_270, ExifUtils.readOrientation(jpeg, SOI.length));
+        }
+        assertEquals(ExifInterface.ORIENTATION_NORMAL, ExifUtils.readOrientation(concat(SOI, DQT), -1));
+        byte[] segment = ExifUtils.getOrientationSegment(ExifInterface.ORIENTATION_TRANSPOSE);
+        assertEquals(ExifInterface.ORIENTATION_TRANSPOSE, ExifUtils.readOrientation(segment, 0));
+    }
+
+    @Test
+    public void testReadOrientation_malformed() {
+        byte[] segment = exif(ByteOrder.BIG_ENDIAN, 40, 30, ExifInterface.ORIENTATION_ROTATE_90);
+        segment[17] = (byte) 200; // IFD0 offset, past the segment end
+        assertEquals(ExifInterface.ORIENTATION_NORMAL, ExifUtils.readOrientation(segment, 0));
+        segment[10] = 'X'; // Byte order
+        assertEquals(ExifInterface.ORIENTATION_NORMAL, ExifUtils.readOrientation(segment, 0));
+    }
+
+    @Test
+    public void testWriteOrientation() {
+        for (ByteOrder order : new ByteOrder[]{ ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+            byte[] segment = exif(order, 40, 30, ExifInterface.ORIENTATION_ROTATE_90);
+            ExifUtils.writeOrientation(segment, 0, ExifInterface.ORIENTATION_NORMAL);
+            assertArrayEquals(exif(order, 40, 30, ExifInterface.ORIENTATION_NORMAL), segment);
+        }
+    }
+
+    @Test
+    public void testWriteDimensions() {
+        for (ByteOrder order : new ByteOrder[]{ ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+            byte[] segment = exif(order, 4000, 3000, ExifInterface.ORIENTATION_ROTATE_90);
+            byte[] jpeg = concat(SOI, APP0, segment, DQT);
+            ExifUtils.writeDimensions(jpeg, ExifUtils.findExifSegment(jpeg), 1200, 900);
+            byte[] expected = exif(order, 1200, 900, ExifInterface.ORIENTATION_ROTATE_90);
+            assertArrayEquals(concat(SOI, APP0, expected, DQT), jpeg);
+        }
+    }
+
+    @Test
+    public void testWriteDimensions_noTags() {
+        // Tags are not added when missing.
+        byte[] segment = ExifUtils.getOrientationSegment(ExifInterface.ORIENTATION_ROTATE_90);
+        byte[] copy = segment.clone();
+        ExifUtils.writeDimensions(segment, 0, 100, 100);
+        assertArrayEquals(copy, segment);
+    }
+
+    @Test
+    public void testWithSegment() throws IOException {
+        byte[] segment = exif(ByteOrder.LITTLE_ENDIAN, 40, 30, ExifInterface.ORIENTATION_NORMAL);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        OutputStream stream = ExifUtils.withSegment(out, segment);
+        stream.write(concat(SOI, APP0, DQT));
+        stream.close();
+        assertArrayEquals(concat(SOI, APP0, segment, DQT), out.toByteArray());
+    }
+}
@@ -0,0 +1,315 @@
+package com.otaliastudios.cameraview;
+
+
+import android.graphics.ImageFormat;
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class FrameDispatcherTest {
+
+    // Collects tasks and runs them when asked to.
+    private static class QueueExecutor implements Executor {
+        private List<Runnable> tasks = new ArrayList<>();
+
+        @Override
+        public void execute(@NonNull Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            List<Runnable> list = tasks;
+            tasks = new ArrayList<>();
+            for (Runnable task : list) task.run();
+        }
+    }
+
+    private FrameManager manager;
+    private QueueExecutor defaultExecutor;
+    private QueueExecutor laneExecutor;
+    private FrameDispatcher dispatcher;
+
+    @Before
+    public void setUp() {
+        manager = mock(FrameManager.class);
+        defaultExecutor = new QueueExecutor();
+        laneExecutor = new QueueExecutor();
+        dispatcher = new FrameDispatcher(defaultExecutor, laneExecutor);
+    }
+
+    @After
+    public void tearDown() {
+        manager = null;
+        defaultExecutor = null;
+        laneExecutor = null;
+        dispatcher = null;
+    }
+
+    private Frame newFrame(long time) {
+        Frame frame = new Frame(manager);
+        frame.set(new byte[4], time, 0, new Size(1, 1), ImageFormat.NV21);
+        return frame;
+    }
+
+    private FrameProcessorOptions options(FrameProcessorOptions.Backpressure backpressure, int queueSize) {
+        FrameProcessorOptions options = new FrameProcessorOptions();
+        options.setBackpressure(backpressure);
+        options.setQueueSize(queueSize);
+        return options;
+    }
+
+    @Test
+    public void testEmpty() {
+        assertTrue(dispatcher.isEmpty());
+        Frame frame = newFrame(0);
+        dispatcher.dispatch(frame);
+        verify(manager, times(1)).onFrameReleased(same(frame), any(byte[].class));
+        assertNull(frame.getData());
+    }
+
+    @Test
+    public void testAddRemove() {
+        FrameProcessor first = mock(FrameProcessor.class);
+        FrameProcessor second = mock(FrameProcessor.class);
+        dispatcher.add(first, null);
+        dispatcher.add(second, new FrameProcessorOptions());
+        assertFalse(dispatcher.isEmpty());
+        assertEquals(2, dispatcher.getHeldFramesCount());
+
+        dispatcher.remove(second);
+        assertEquals(0, dispatcher.getHeldFramesCount());
+        dispatcher.remove(first);
+        assertTrue(dispatcher.isEmpty());
+    }
+
+    @Test
+    public void testWindowProcessor() {
+        FrameWindowProcessor window = new FrameWindowProcessor(3) {
+            @Override
+            public void process(@NonNull FrameWindow window) {}
+        };
+        dispatcher.add(window, null);
+        assertEquals(3, dispatcher.getHeldFramesCount());
+        dispatcher.add(mock(FrameProcessor.class), new FrameProcessorOptions());
+        assertEquals(5, dispatcher.getHeldFramesCount());
+
+        // The window should keep the frame until the processor is removed.
+        Frame frame = newFrame(0);
+        dispatcher.dispatch(frame);
+        defaultExecutor.runAll();
+        laneExecutor.runAll();
+        verify(manager, never()).onFrameReleased(same(frame), any(byte[].class));
+        dispatcher.remove(window);
+        verify(manager, times(1)).onFrameReleased(same(frame), any(byte[].class));
+    }
+
+    @Test
+    public void testDefaultLane() {
+        FrameProcessor first = mock(FrameProcessor.class);
+        FrameProcessor second = mock(FrameProcessor.class);
+        dispatcher.add(first, null);
+        dispatcher.add(second, null);
+
+        Frame frame = newFrame(0);
+        dispatcher.dispatch(frame);
+        verify(manager, never()).onFrameReleased(same(frame), any(byte[].class));
+        defaultExecutor.runAll();
+        verify(first, times(1)).process(same(frame));
+        verify(second, times(1)).process(same(frame));
+        verify(manager, times(1)).onFrameReleased(same(frame), any(byte[].class));
+    }
+
+    @Test
+    public void testReleasedByLastLane() {
+        FrameProcessor slow = mock(FrameProcessor.class);
+        FrameProcessor fast = mock(FrameProcessor.class);
+        dispatcher.add(slow, new FrameProcessorOptions());
+        dispatcher.add(fast, null);
+
+        Frame frame = newFrame(0);
+        dispatcher.dispatch(frame);
+        defaultExecutor.runAll();
+        verify(fast, times(1)).process(same(frame));
+        verify(manager, never()).onFrameReleased(same(frame), any(byte[].class));
+
+        laneExecutor.runAll();
+        verify(slow, times(1)).process(same(frame));
+        verify(manager, times(1)).onFrameReleased(same(frame), any(byte[].class));
+    }
+
+    @Test
+    public void testProcessorFailure() {
+        FrameProcessor failing = mock(FrameProcessor.class);
+        FrameProcessor other = mock(FrameProcessor.class);
+        doThrow(new RuntimeException()).when(failing).process(any(Frame.class));
+        dispatcher.add(failing, new FrameProcessorOptions());
+        dispatcher.add(failing, null);
+        dispatcher.add(other, null);
+
+        // The frame should be released anyway, and the lanes should keep running.
+        for (int i = 0; i < 2; i++) {
+            Frame frame = newFrame(i);
+            dispatcher.dispatch(frame);
+            defaultExecutor.runAll();
+            laneExecutor.runAll();
+            verify(manager, times(1)).onFrameReleased(same(frame), any(byte[].class));
+        }
+        verify(failing, times(4)).process(any(Frame.class));
+        verify(other, times(2)).process(any(Frame.class));
+    }
+
+    @Test
+    public void testBackpressure_dropNewest() {
+        FrameProcessor processor = mock(FrameProcessor.class);
+        dispatcher.add(processor, options(FrameProcessorOptions.Backpressure.DROP_NEWEST, 2));
+        Frame f1 = newFrame(1);
+        Frame f2 = newFrame(2);
+        Frame f3 = newFrame(3);
+        dispatcher.dispatch(f1);
+        dispatcher.dispatch(f2);
+        dispatcher.dispatch(f3);
+        verify(manager, times(1)).onFrameReleased(same(f3), any(byte[].class));
+
+        laneExecutor.runAll();
+        verify(processor, times(1)).process(same(f1));
+        verify(processor, times(1)).process(same(f2));
+        verify(processor, times(2)).process(any(Frame.class));
+    }
+
+    @Test
+    public void testBackpressure_dropOldest() {
+        FrameProcessor processor = mock(FrameProcessor.class);
+        dispatcher.add(processor, options(FrameProcessorOptions.Backpressure.DROP_OLDEST, 2));
+        Frame f1 = newFrame(1);
+        Frame f2 = newFrame(2);
+        Frame f3 = newFrame(3);
+        dispatcher.dispatch(f1);
+        dispatcher.dispatch(f2);
+        dispatcher.dispatch(f3);
+        verify(manager, times(1)).onFrameReleased(same(f1), any(byte[].class));
+
+        laneExecutor.runAll();
+        verify(processor, times(1)).process(same(f2));
+        verify(processor, times(1)).process(same(f3));
+        verify(processor, times(2)).process(any(Frame.class));
+    }
+
+    @Test
+    public void testBackpressure_keepLatest() {
+        FrameProcessor processor = mock(FrameProcessor.class);
+        dispatcher.add(processor, options(FrameProcessorOptions.Backpressure.KEEP_LATEST, 5));
+        assertEquals(2, dispatcher.getHeldFramesCount());
+        Frame f1 = newFrame(1);
+        Frame f2 = newFrame(2);
+        Frame f3 = newFrame(3);
+        dispatcher.dispatch(f1);
+        dispatcher.dispatch(f2);
+        dispatcher.dispatch(f3);
+        verify(manager, times(1)).onFrameReleased(same(f1), any(byte[].class));
+        verify(manager, times(1)).onFrameReleased(same(f2), any(byte[].class));
+
+        laneExecutor.runAll();
+        verify(processor, times(1)).process(same(f3));
+        verify(processor, times(1)).process(any(Frame.class));
+    }
+
+    @Test
+    public void testClear() {
+        FrameProcessor processor = mock(FrameProcessor.class);
+        dispatcher.add(processor, new FrameProcessorOptions());
+        Frame frame = newFrame(0);
+        dispatcher.dispatch(frame);
+        dispatcher.clear();
+        assertTrue(dispatcher.isEmpty());
+        verify(manager, times(1)).onFrameReleased(same(frame), any(byte[].class));
+
+        laneExecutor.runAll();
+        verify(processor, never()).process(any(Frame.class));
+    }
+
+    @Test
+    public void testFrameInterval() {
+        FrameProcessor processor = mock(FrameProcessor.class);
+        FrameProcessorOptions options = new FrameProcessorOptions();
+        options.setFrameInterval(3);
+        dispatcher.add(processor, options);
+
+        for (int i = 0; i < 7; i++) {
+            Frame frame = newFrame(i);
+            dispatcher.dispatch(frame);
+            boolean skipped = i % 3 != 0;
+            // Skipped frames should go back to the manager immediately.
+            verify(manager, times(skipped ? 1 : 0)).onFrameReleased(same(frame), any(byte[].class));
+            laneExecutor.runAll();
+        }
+        verify(processor, times(3)).process(any(Frame.class));
+    }
+
+    @Test
+    public void testMaxFrameRate() {
+        FrameProcessor processor = mock(FrameProcessor.class);
+        FrameProcessorOptions options = new FrameProcessorOptions();
+        options.setMaxFrameRate(10);
+        dispatcher.add(processor, options);
+
+        // 30 fps for one second, with some jitter.
+        for (int i = 0; i < 30; i++) {
+            long jitter = i % 2 == 0 ? 2 : -2;
+            dispatcher.dispatch(newFrame(0), 1000 + i * 33 + jitter);
+            laneExecutor.runAll();
+        }
+        verify(processor, times(10)).process(any(Frame.class));
+    }
+
+    @Test
+    public void testMaxFrameRate_ignoresFrameTime() {
+        FrameProcessor processor = mock(FrameProcessor.class);
+        FrameProcessorOptions options = new FrameProcessorOptions();
+        options.setMaxFrameRate(10);
+        dispatcher.add(processor, options);
+
+        // The wall clock jumps forward, but the frames come in quick succession.
+        for (int i = 0; i < 3; i++) {
+            dispatcher.dispatch(newFrame(i * 100000), 1000 + i);
+            laneExecutor.runAll();
+        }
+        verify(processor, times(1)).process(any(Frame.class));
+    }
+
+    @Test
+    public void testMaxFrameRate_timeGoesBack() {
+        FrameProcessor processor = mock(FrameProcessor.class);
+        FrameProcessorOptions options = new FrameProcessorOptions();
+        options.setMaxFrameRate(10);
+        dispatcher.add(processor, options);
+
+        dispatcher.dispatch(newFrame(0), 100000);
+        laneExecutor.runAll();
+        // Slots scheduled far ahead should not block frames.
+        dispatcher.dispatch(newFrame(0), 1000);
+        laneExecutor.runAll();
+        dispatcher.dispatch(newFrame(0), 1050);
+        laneExecutor.runAll();
+        dispatcher.dispatch(newFrame(0), 1100);
+        laneExecutor.runAll();
+        verify(processor, times(3)).process(any(Frame.class));
+    }
+}
@@ -0,0 +1,77 @@
+package com.otaliastudios.cameraview;
+
+
+import android.graphics.ImageFormat;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Measures the FrameManager hot path, that is, {@link FrameManager#getFrame(byte[], long, int, Size, int)}
+ * followed by {@link Frame#release()}, as done for each preview frame.
+ * This relies on the HotSpot per-thread allocation counter, and is skipped on other JVMs.
+ */
+public class FrameManagerBenchmarkTest {
+
+    private final static String TAG = FrameManagerBenchmarkTest.class.getSimpleName();
+    private final static CameraLogger LOG = CameraLogger.create(TAG);
+
+    private final static int WARMUP = 20000;
+    private final static int FRAMES = 100000;
+    private final static int ROUNDS = 3;
+
+    private static class NoOpCallback implements FrameManager.BufferCallback {
+        @Override
+        public void onBufferAvailable(byte[] buffer) {}
+    }
+
+    private static long allocatedBytes(ThreadMXBean bean) {
+        return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    private static void run(FrameManager manager, byte[] buffer, Size size, int count) {
+        for (int i = 0; i < count; i++) {
+            Frame frame = manager.getFrame(buffer, i, 0, size, ImageFormat.NV21);
+            frame.release();
+        }
+    }
+
+    @Test
+    public void testSteadyStateAllocations() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        Assume.assumeTrue(((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported());
+        ((com.sun.management.ThreadMXBean) bean).setThreadAllocatedMemoryEnabled(true);
+
+        Size size = new Size(640, 480);
+        FrameManager manager = new FrameManager(2, new NoOpCallback());
+        byte[] buffer = new byte[manager.allocate(12, size)];
+        run(manager, buffer, size, WARMUP);
+
+        // The JVM itself might allocate once in a while (e.g. when recompiling),
+        // so we take the best of a few rounds. Any per-frame allocation would show up in all of them.
+        // Results are logged at verbose level, which is filtered out by default.
+        int level = CameraLogger.getLogLevel();
+        CameraLogger.setLogLevel(CameraLogger.LEVEL_VERBOSE);
+        long allocated = Long.MAX_VALUE;
+        try {
+            for (int round = 0; round < ROUNDS && allocated > 0; round++) {
+                long before = allocatedBytes(bean);
+                long start = System.nanoTime();
+                run(manager, buffer, size, FRAMES);
+                long elapsed = System.nanoTime() - start;
+                allocated = allocatedBytes(bean) - before;
+                LOG.v("testSteadyStateAllocations:", "ns per frame:", elapsed / FRAMES,
+                        "bytes allocated:", allocated);
+            }
+        } finally {
+            CameraLogger.setLogLevel(level);
+        }
+        assertEquals(0, allocated);
+    }
+}
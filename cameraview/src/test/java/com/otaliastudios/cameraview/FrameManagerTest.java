@@ -15,6 +15,7 @@ import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
@@ -49,6 +50,134 @@ public class FrameManagerTest {
         verify(callback, times(5)).onBufferAvailable(any(byte[].class));
     }
 
+    @Test
+    public void testAllocate_layout() {
+        // Buffers should include the YV12 stride padding.
+        FrameManager manager = new FrameManager(2, callback);
+        YuvLayout layout = YuvLayout.yv12(20, 4);
+        assertEquals(layout.getBufferSize(), manager.allocate(layout));
+        verify(callback, times(2)).onBufferAvailable(any(byte[].class));
+
+        byte[] data = new byte[layout.getBufferSize()];
+        Frame frame = manager.getFrame(data, 0, 0, new Size(20, 4), layout);
+        assertTrue(frame.getLayout() == layout);
+        assertEquals(ImageFormat.YV12, frame.getFormat());
+    }
+
+    @Test
+    public void testSetPoolSize() {
+        FrameManager manager = new FrameManager(1, callback);
+        manager.setPoolSize(2);
+        verify(callback, never()).onBufferAvailable(any(byte[].class));
+
+        // Growing after allocation should allocate the missing buffers.
+        int length = manager.allocate(4, new Size(50, 50));
+        verify(callback, times(2)).onBufferAvailable(any(byte[].class));
+        reset(callback);
+        manager.setPoolSize(4);
+        verify(callback, times(2)).onBufferAvailable(any(byte[].class));
+
+        // Shrinking should drop buffers as they are released.
+        reset(callback);
+        manager.setPoolSize(3);
+        byte[] first = new byte[length];
+        byte[] second = new byte[length];
+        manager.onFrameReleased(manager.getFrame(first, 0, 0, null, 0), first);
+        manager.onFrameReleased(manager.getFrame(second, 0, 0, null, 0), second);
+        verify(callback, never()).onBufferAvailable(same(first));
+        verify(callback, times(1)).onBufferAvailable(same(second));
+    }
+
+    @Test
+    public void testSetPoolSizeBounds() {
+        FrameManager manager = new FrameManager(2, callback);
+        manager.setPoolSizeBounds(3, 6);
+        assertEquals(3, manager.getPoolSize());
+        assertEquals(3, manager.getMinPoolSize());
+        assertEquals(6, manager.getMaxPoolSize());
+
+        // A fixed size should disable the bounds.
+        manager.setPoolSize(4);
+        assertEquals(4, manager.getMinPoolSize());
+        assertEquals(4, manager.getMaxPoolSize());
+    }
+
+    @Test
+    public void testAdaptive_grow() {
+        FrameManager manager = new FrameManager(2, callback);
+        manager.setPoolSizeBounds(2, 4);
+        int length = manager.allocate(4, new Size(50, 50));
+        reset(callback);
+
+        // Holding all buffers means that the camera is dropping frames.
+        manager.getFrame(new byte[length], 0, 0, null, 0);
+        assertEquals(2, manager.getPoolSize());
+        manager.getFrame(new byte[length], 0, 0, null, 0);
+        assertEquals(3, manager.getPoolSize());
+        verify(callback, times(1)).onBufferAvailable(any(byte[].class));
+        manager.getFrame(new byte[length], 0, 0, null, 0);
+        manager.getFrame(new byte[length], 0, 0, null, 0);
+        manager.getFrame(new byte[length], 0, 0, null, 0);
+        assertEquals(4, manager.getPoolSize());
+    }
+
+    @Test
+    public void testAdaptive_shrink() {
+        FrameManager manager = new FrameManager(2, callback);
+        manager.setPoolSizeBounds(2, 4);
+        int length = manager.allocate(4, new Size(50, 50));
+        Frame first = manager.getFrame(new byte[length], 0, 0, null, 0);
+        Frame second = manager.getFrame(new byte[length], 0, 0, null, 0);
+        Frame third = manager.getFrame(new byte[length], 0, 0, null, 0);
+        assertEquals(4, manager.getPoolSize());
+        first.release();
+        second.release();
+        third.release();
+
+        // Frames are released immediately, so we should go back to the minimum.
+        // Each step waits for SHRINK_DELAY frames.
+        for (int i = 0; i < FrameManager.SHRINK_DELAY - 1; i++) {
+            manager.getFrame(new byte[length], 0, 0, null, 0).release();
+        }
+        assertEquals(4, manager.getPoolSize());
+        for (int i = 0; i < FrameManager.SHRINK_DELAY * 4; i++) {
+            manager.getFrame(new byte[length], 0, 0, null, 0).release();
+        }
+        assertEquals(2, manager.getPoolSize());
+    }
+
+    @Test
+    public void testHistory() {
+        FrameManager manager = new FrameManager(4, callback);
+        int length = manager.allocate(4, new Size(50, 50));
+        manager.setHistorySize(2);
+        assertNull(manager.getHistoryFrame(0));
+
+        // Release frames as processors would. The history should keep the last two.
+        byte[] first = new byte[length];
+        byte[] second = new byte[length];
+        byte[] third = new byte[length];
+        reset(callback);
+        manager.getFrame(first, 10, 0, null, 0).release();
+        manager.getFrame(second, 20, 0, null, 0).release();
+        verify(callback, never()).onBufferAvailable(any(byte[].class));
+        manager.getFrame(third, 30, 0, null, 0).release();
+        verify(callback, times(1)).onBufferAvailable(same(first));
+
+        Frame frame = manager.getHistoryFrame(12);
+        assertTrue(frame.getData() == second);
+        Frame latest = manager.getHistoryFrame(100);
+        assertTrue(latest.getData() == third);
+        latest.release();
+
+        // The history frame was retained for us, so it should survive the history.
+        manager.setHistorySize(0);
+        verify(callback, never()).onBufferAvailable(same(second));
+        verify(callback, times(1)).onBufferAvailable(same(third));
+        frame.release();
+        verify(callback, times(1)).onBufferAvailable(same(second));
+    }
+
     @Test
     public void testFrameRecycling() {
         // A 1-pool manager will always recycle the same frame.
@@ -71,7 +200,7 @@ public class FrameManagerTest {
         reset(callback);
 
         Frame frame = manager.getFrame(null, 0, 0, null, 0);
-        manager.onFrameReleased(frame);
+        manager.onFrameReleased(frame, frame.getData());
         verify(callback, never()).onBufferAvailable(frame.getData());
     }
 
@@ -86,7 +215,7 @@ public class FrameManagerTest {
 
         // Release the frame and ensure that onBufferAvailable is called.
         reset(callback);
-        manager.onFrameReleased(frame);
+        manager.onFrameReleased(frame, frame.getData());
         verify(callback, times(1)).onBufferAvailable(picture);
     }
 
@@ -104,7 +233,7 @@ public class FrameManagerTest {
 
         // Now release the old frame and ensure that onBufferAvailable is NOT called,
         // because the released data has wrong length.
-        manager.onFrameReleased(frame);
+        manager.onFrameReleased(frame, frame.getData());
         reset(callback);
         verify(callback, never()).onBufferAvailable(picture);
     }
@@ -121,4 +250,44 @@ public class FrameManagerTest {
         assertNull(first.getData());
         assertNull(first.mManager);
     }
+
+    @Test
+    public void testFreeze() {
+        FrameManager manager = new FrameManager(1, callback);
+        int length = manager.allocate(4, new Size(50, 50));
+        Frame frame = manager.getFrame(new byte[length], 0, 0, null, 0);
+        assertEquals(0, manager.getFrozenFrameCount());
+
+        Frame first = frame.freeze();
+        Frame second = frame.freeze();
+        assertEquals(2, manager.getFrozenFrameCount());
+
+        // Released arrays should be reused by the next freeze, not given to the camera.
+        byte[] firstData = first.getData();
+        reset(callback);
+        first.release();
+        assertEquals(1, manager.getFrozenFrameCount());
+        verify(callback, never()).onBufferAvailable(any(byte[].class));
+        Frame third = frame.freeze();
+        assertTrue(third.getData() == firstData);
+
+        second.release();
+        third.release();
+        assertEquals(0, manager.getFrozenFrameCount());
+    }
+
+    @Test
+    public void testFreeze_budget() {
+        FrameManager manager = new FrameManager(1, callback);
+        int length = manager.allocate(4, new Size(50, 50));
+        manager.setFrozenBudget(length - 1);
+        Frame frame = manager.getFrame(new byte[length], 0, 0, null, 0);
+
+        // The array exceeds the budget, so it should not be reused.
+        Frame first = frame.freeze();
+        byte[] firstData = first.getData();
+        first.release();
+        Frame second = frame.freeze();
+        assertTrue(second.getData() != firstData);
+    }
 }
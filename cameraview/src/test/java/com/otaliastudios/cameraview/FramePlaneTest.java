@@ -0,0 +1,146 @@
+package com.otaliastudios.cameraview;
+
+
+import android.graphics.ImageFormat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+
+public class FramePlaneTest {
+
+    // A 4x2 NV21 frame where each byte holds its own index.
+    private Frame newFrame() {
+        byte[] data = new byte[4 * 2 * 3 / 2];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        Frame frame = new Frame(mock(FrameManager.class));
+        frame.set(data, 0, 0, new Size(4, 2), ImageFormat.NV21);
+        return frame;
+    }
+
+    @Test
+    public void testYPlane() {
+        Frame frame = newFrame();
+        FramePlane plane = frame.getYPlane();
+        assertTrue(plane.getData() == frame.getData());
+        assertEquals(4, plane.getWidth());
+        assertEquals(2, plane.getHeight());
+        assertEquals(4, plane.getRowStride());
+        assertEquals(1, plane.getPixelStride());
+        assertEquals(0, plane.get(0, 0));
+        assertEquals(6, plane.get(2, 1));
+        assertTrue(plane == frame.getYPlane());
+    }
+
+    @Test
+    public void testVuPlane() {
+        Frame frame = newFrame();
+        FramePlane plane = frame.getVuPlane();
+        assertEquals(8, plane.getOffset());
+        assertEquals(2, plane.getWidth());
+        assertEquals(1, plane.getHeight());
+        assertEquals(4, plane.getRowStride());
+        assertEquals(2, plane.getPixelStride());
+        assertEquals(10, plane.get(1, 0)); // V
+        assertEquals(11, plane.get(1, 0, 1)); // U
+    }
+
+    @Test
+    public void testUvPlanes() {
+        // A 4x2 YV12 frame, with 16 bytes strides: V comes first, then U.
+        byte[] data = new byte[YuvLayout.yv12(4, 2).getBufferSize()];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        Frame frame = new Frame(mock(FrameManager.class));
+        frame.set(data, 0, 0, new Size(4, 2), ImageFormat.YV12);
+        assertEquals(16, frame.getYPlane().getRowStride());
+        assertEquals(17, frame.getYPlane().get(1, 1));
+        FramePlane v = frame.getVPlane();
+        assertEquals(32, v.getOffset());
+        assertEquals(2, v.getWidth());
+        assertEquals(1, v.getHeight());
+        assertEquals(1, v.getPixelStride());
+        assertEquals(33, v.get(1, 0));
+        FramePlane u = frame.getUPlane();
+        assertEquals(48, u.getOffset());
+        assertEquals(49, u.get(1, 0));
+    }
+
+    @Test
+    public void testUvPlanes_nv21() {
+        Frame frame = newFrame();
+        assertEquals(10, frame.getVPlane().get(1, 0));
+        assertEquals(11, frame.getUPlane().get(1, 0));
+        assertEquals(2, frame.getUPlane().getPixelStride());
+    }
+
+    @Test
+    public void testPlanes_oddSize() {
+        // Chroma planes round up, so the last column and row are covered.
+        Frame frame = new Frame(mock(FrameManager.class));
+        frame.set(new byte[YuvLayout.nv21(3, 3).getBufferSize()], 0, 0, new Size(3, 3), ImageFormat.NV21);
+        assertEquals(2, frame.getVuPlane().getWidth());
+        assertEquals(2, frame.getVuPlane().getHeight());
+        assertEquals(frame.getUPlane().getWidth(), frame.getVuPlane().getWidth());
+        assertEquals(frame.getVPlane().getHeight(), frame.getVuPlane().getHeight());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testVuPlane_planar() {
+        Frame frame = new Frame(mock(FrameManager.class));
+        frame.set(new byte[64], 0, 0, new Size(4, 2), ImageFormat.YV12);
+        frame.getVuPlane();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPlanes_unknownFormat() {
+        Frame frame = new Frame(mock(FrameManager.class));
+        frame.set(new byte[16], 0, 0, new Size(4, 2), ImageFormat.YUY2);
+        frame.getYPlane();
+    }
+
+    @Test
+    public void testUnsigned() {
+        byte[] data = new byte[] { (byte) 200 };
+        FramePlane plane = new FramePlane(data, 0, 1, 1, 1, 1);
+        assertEquals(200, plane.get(0, 0));
+    }
+
+    @Test
+    public void testCrop() {
+        Frame frame = newFrame();
+        FramePlane crop = frame.getYPlane().crop(1, 1, 2, 1);
+        assertEquals(2, crop.getWidth());
+        assertEquals(1, crop.getHeight());
+        assertEquals(4, crop.getRowStride());
+        assertEquals(5, crop.get(0, 0));
+        assertEquals(6, crop.get(1, 0));
+        assertEquals(6, crop.getIndex(1, 0));
+
+        // Crops of crops should work as well.
+        assertEquals(6, crop.crop(1, 0, 1, 1).get(0, 0));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testGet_outOfBounds() {
+        newFrame().getYPlane().get(4, 0);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testGet_invalidSample() {
+        newFrame().getVuPlane().get(0, 0, 2);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testCrop_outOfBounds() {
+        newFrame().getYPlane().crop(2, 0, 3, 1);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testReleased() {
+        Frame frame = newFrame();
+        frame.release();
+        frame.getYPlane();
+    }
+}
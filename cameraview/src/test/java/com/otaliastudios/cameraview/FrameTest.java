@@ -14,10 +14,15 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.same;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 
 public class FrameTest {
 
@@ -67,7 +72,54 @@ public class FrameTest {
         assertEquals(frame.getRotation(), 0);
         assertNull(frame.getData());
         assertNull(frame.getSize());
-        verify(manager, times(1)).onFrameReleased(frame);
+        verify(manager, times(1)).onFrameReleased(same(frame), any(byte[].class));
+    }
+
+    @Test
+    public void testRelease_twice() {
+        Frame frame = new Frame(manager);
+        frame.set(new byte[2], 1000, 90, new Size(10, 10), ImageFormat.NV21);
+        frame.release();
+        frame.release();
+        verify(manager, times(1)).onFrameReleased(same(frame), any(byte[].class));
+    }
+
+    @Test
+    public void testRelease_twiceFrozen() {
+        Frame frame = new Frame(manager);
+        frame.set(new byte[2], 1000, 90, new Size(10, 10), ImageFormat.NV21);
+        when(manager.obtainFrozenBuffer(2)).thenReturn(new byte[2]);
+        Frame frozen = frame.freeze();
+        frozen.release();
+        frozen.release();
+        verify(manager, times(1)).onFrozenFrameReleased(same(frozen), any(byte[].class));
+    }
+
+    @Test
+    public void testRetain() {
+        Frame frame = new Frame(manager);
+        frame.set(new byte[2], 1000, 90, new Size(10, 10), ImageFormat.NV21);
+        frame.retain();
+        frame.release();
+        assertNotNull(frame.getData());
+        verify(manager, times(0)).onFrameReleased(same(frame), any(byte[].class));
+
+        frame.release();
+        assertNull(frame.getData());
+        verify(manager, times(1)).onFrameReleased(same(frame), any(byte[].class));
+    }
+
+    @Test
+    public void testRetain_afterRelease() {
+        Frame frame = new Frame(manager);
+        frame.set(new byte[2], 1000, 90, new Size(10, 10), ImageFormat.NV21);
+        frame.release();
+        try {
+            frame.retain();
+            fail("Released frames should not be retained.");
+        } catch (IllegalStateException e) {
+            // Expected.
+        }
     }
 
     @Test
@@ -87,6 +139,7 @@ public class FrameTest {
         Size size = new Size(10, 10);
         int format = ImageFormat.NV21;
         frame.set(data, time, rotation, size, format);
+        when(manager.obtainFrozenBuffer(data.length)).thenReturn(new byte[data.length]);
 
         Frame frozen = frame.freeze();
         assertArrayEquals(data, frozen.getData());
@@ -103,4 +156,68 @@ public class FrameTest {
         assertEquals(format, frozen.getFormat());
     }
 
+    @Test
+    public void testFreeze_release() {
+        Frame frame = new Frame(manager);
+        byte[] data = new byte[]{0, 1, 5, 0, 7, 3, 4, 5};
+        byte[] pooled = new byte[data.length];
+        frame.set(data, 1000, 90, new Size(10, 10), ImageFormat.NV21);
+        when(manager.obtainFrozenBuffer(data.length)).thenReturn(pooled);
+
+        Frame frozen = frame.freeze();
+        assertTrue(frozen.getData() == pooled);
+        frozen.release();
+        verify(manager, times(1)).onFrozenFrameReleased(same(frozen), same(pooled));
+        verify(manager, never()).onFrameReleased(same(frozen), any(byte[].class));
+    }
+
+    @Test
+    public void testPyramid() {
+        // A 4x4 luma plane with a 2x2 pattern, followed by chroma.
+        byte[] data = new byte[4 * 4 * 3 / 2];
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                data[y * 4 + x] = (byte) (x < 2 ? (y < 2 ? 10 : 200) : 100);
+            }
+        }
+        when(manager.obtainPyramidBuffer(4)).thenReturn(new byte[4]);
+        when(manager.obtainPyramidBuffer(1)).thenReturn(new byte[1]);
+        Frame frame = new Frame(manager);
+        frame.set(data, 0, 0, new Size(4, 4), ImageFormat.NV21);
+
+        assertTrue(frame.getYPlane(0) == frame.getYPlane());
+        FramePlane half = frame.getYPlane(1);
+        assertEquals(2, half.getWidth());
+        assertEquals(2, half.getHeight());
+        assertEquals(10, half.get(0, 0));
+        assertEquals(100, half.get(1, 0));
+        assertEquals(200, half.get(0, 1));
+        assertEquals(100, half.get(1, 1));
+        FramePlane quarter = frame.getYPlane(2);
+        assertEquals(1, quarter.getWidth());
+        assertEquals(103, quarter.get(0, 0)); // (10 + 100 + 200 + 100) / 4, rounded
+
+        // Levels should be computed once, then given back on release.
+        byte[] halfData = half.getData();
+        assertTrue(frame.getYPlane(1).getData() == halfData);
+        verify(manager, times(1)).obtainPyramidBuffer(4);
+        frame.release();
+        verify(manager, times(1)).recyclePyramidBuffer(same(halfData));
+        verify(manager, times(1)).recyclePyramidBuffer(same(quarter.getData()));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPyramid_tooSmall() {
+        when(manager.obtainPyramidBuffer(any(Integer.class))).thenReturn(new byte[1]);
+        Frame frame = new Frame(manager);
+        frame.set(new byte[6], 0, 0, new Size(2, 2), ImageFormat.NV21);
+        frame.getYPlane(2);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPyramid_invalidLevel() {
+        Frame frame = new Frame(manager);
+        frame.set(new byte[6], 0, 0, new Size(2, 2), ImageFormat.NV21);
+        frame.getYPlane(Frame.MAX_PYRAMID_LEVEL + 1);
+    }
 }
@@ -0,0 +1,138 @@
+package com.otaliastudios.cameraview;
+
+
+import android.graphics.ImageFormat;
+import android.support.annotation.NonNull;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.same;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+public class FrameWindowProcessorTest {
+
+    // Records the window times for each call.
+    private static class RecordingProcessor extends FrameWindowProcessor {
+        private final List<List<Long>> windows = new ArrayList<>();
+
+        RecordingProcessor(int windowSize) {
+            super(windowSize);
+        }
+
+        @Override
+        public void process(@NonNull FrameWindow window) {
+            List<Long> times = new ArrayList<>();
+            for (int i = 0; i < window.size(); i++) {
+                times.add(window.get(i).getTime());
+            }
+            windows.add(times);
+        }
+    }
+
+    private FrameManager manager;
+
+    @Before
+    public void setUp() {
+        manager = mock(FrameManager.class);
+    }
+
+    @After
+    public void tearDown() {
+        manager = null;
+    }
+
+    private Frame newFrame(long time) {
+        Frame frame = new Frame(manager);
+        frame.set(new byte[4], time, 0, new Size(1, 1), ImageFormat.NV21);
+        return frame;
+    }
+
+    // Processes the frame and releases it, as the dispatcher would.
+    private Frame process(FrameProcessor processor, long time) {
+        Frame frame = newFrame(time);
+        processor.process(frame);
+        frame.release();
+        return frame;
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWindowSize_invalid() {
+        new RecordingProcessor(0);
+    }
+
+    @Test
+    public void testWindow() {
+        RecordingProcessor processor = new RecordingProcessor(2);
+        processor.setActive(true);
+        assertEquals(2, processor.getWindowSize());
+
+        Frame first = process(processor, 1);
+        Frame second = process(processor, 2);
+        verify(manager, never()).onFrameReleased(any(Frame.class), any(byte[].class));
+
+        // The first frame leaves the window, so it should be released.
+        process(processor, 3);
+        verify(manager, times(1)).onFrameReleased(same(first), any(byte[].class));
+        verify(manager, never()).onFrameReleased(same(second), any(byte[].class));
+
+        assertEquals(3, processor.windows.size());
+        assertEquals(1, processor.windows.get(0).size());
+        assertEquals(2L, (long) processor.windows.get(1).get(1));
+        assertEquals(2L, (long) processor.windows.get(2).get(0));
+        assertEquals(3L, (long) processor.windows.get(2).get(1));
+    }
+
+    @Test
+    public void testSetActive() {
+        RecordingProcessor processor = new RecordingProcessor(3);
+        processor.setActive(true);
+        Frame first = process(processor, 1);
+        Frame second = process(processor, 2);
+
+        // Removing the processor should release the window.
+        processor.setActive(false);
+        verify(manager, times(1)).onFrameReleased(same(first), any(byte[].class));
+        verify(manager, times(1)).onFrameReleased(same(second), any(byte[].class));
+
+        // Late frames should be ignored.
+        Frame late = process(processor, 3);
+        assertEquals(2, processor.windows.size());
+        assertNull(late.getData());
+    }
+
+    @Test
+    public void testSetActive_whileProcessing() {
+        final List<Frame> frames = new ArrayList<>();
+        FrameWindowProcessor processor = new FrameWindowProcessor(2) {
+            @Override
+            public void process(@NonNull FrameWindow window) {
+                // Removed while processing: frames should still be valid here.
+                setActive(false);
+                frames.add(window.getLatest());
+                assertTrue(window.getLatest().getData() != null);
+            }
+        };
+        processor.setActive(true);
+        process(processor, 1);
+        verify(manager, times(1)).onFrameReleased(same(frames.get(0)), any(byte[].class));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testWindow_outOfBounds() {
+        FrameWindow window = new FrameWindow(2);
+        window.push(newFrame(1));
+        window.get(1);
+    }
+}
@@ -0,0 +1,166 @@
+package com.otaliastudios.cameraview;
+
+
+import org.junit.Test;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JpegCropperTest {
+
+    // Smooth content with some noise, so that blocks have both DC and AC coefficients.
+    private static BufferedImage image(int width, int height, int type) {
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(width * height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int r = (x * 255 / width + random.nextInt(32)) & 0xFF;
+                int g = (y * 255 / height + random.nextInt(32)) & 0xFF;
+                int b = ((x + y) * 2 + random.nextInt(32)) & 0xFF;
+                image.setRGB(x, y, r << 16 | g << 8 | b);
+            }
+        }
+        return image;
+    }
+
+    private static byte[] encode(BufferedImage image, boolean progressive, int restartInterval) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (progressive) param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+        if (restartInterval > 0) {
+            String format = metadata.getNativeMetadataFormatName();
+            Node root = metadata.getAsTree(format);
+            Node sequence = ((Element) root).getElementsByTagName("markerSequence").item(0);
+            IIOMetadataNode dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", String.valueOf(restartInterval));
+            sequence.insertBefore(dri, sequence.getFirstChild());
+            metadata.setFromTree(format, root);
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out);
+        writer.setOutput(stream);
+        writer.write(null, new IIOImage(image, null, metadata), param);
+        stream.close();
+        writer.dispose();
+        return out.toByteArray();
+    }
+
+    private static BufferedImage decode(byte[] jpeg) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(jpeg));
+    }
+
+    // Compares the crop with the original, away from the crop edges, where
+    // chroma upsampling reads samples that are not there anymore.
+    private static void assertSameContent(BufferedImage original, BufferedImage crop, int x, int y) {
+        int margin = 2;
+        for (int j = margin; j < crop.getHeight() - margin; j++) {
+            for (int i = margin; i < crop.getWidth() - margin; i++) {
+                assertEquals("Pixel " + i + "," + j, original.getRGB(x + i, y + j), crop.getRGB(i, j));
+            }
+        }
+    }
+
+    private static void checkCrop(byte[] jpeg, int x, int y, int width, int height) throws IOException {
+        JpegCropper cropper = JpegCropper.parse(jpeg);
+        assertNotNull(cropper);
+        byte[] cropped = cropper.crop(x, y, width, height);
+        assertNotNull(cropped);
+        BufferedImage crop = decode(cropped);
+        assertEquals(width, crop.getWidth());
+        assertEquals(height, crop.getHeight());
+        int snappedX = x / cropper.getMcuWidth() * cropper.getMcuWidth();
+        int snappedY = y / cropper.getMcuHeight() * cropper.getMcuHeight();
+        assertSameContent(decode(jpeg), crop, snappedX, snappedY);
+    }
+
+    @Test
+    public void testParse() throws IOException {
+        byte[] jpeg = encode(image(100, 60, BufferedImage.TYPE_INT_RGB), false, 0);
+        JpegCropper cropper = JpegCropper.parse(jpeg);
+        assertNotNull(cropper);
+        assertEquals(100, cropper.getWidth());
+        assertEquals(60, cropper.getHeight());
+        assertTrue(cropper.getMcuWidth() == 8 || cropper.getMcuWidth() == 16);
+        assertTrue(cropper.getMcuHeight() == 8 || cropper.getMcuHeight() == 16);
+    }
+
+    @Test
+    public void testCrop() throws IOException {
+        byte[] jpeg = encode(image(100, 60, BufferedImage.TYPE_INT_RGB), false, 0);
+        checkCrop(jpeg, 0, 0, 100, 60);
+        checkCrop(jpeg, 16, 16, 64, 32);
+        checkCrop(jpeg, 32, 0, 68, 60); // Up to the right edge
+        checkCrop(jpeg, 21, 35, 50, 25); // Not aligned
+    }
+
+    @Test
+    public void testCrop_grayscale() throws IOException {
+        byte[] jpeg = encode(image(90, 50, BufferedImage.TYPE_BYTE_GRAY), false, 0);
+        JpegCropper cropper = JpegCropper.parse(jpeg);
+        assertNotNull(cropper);
+        assertEquals(8, cropper.getMcuWidth());
+        checkCrop(jpeg, 8, 8, 70, 40);
+        checkCrop(jpeg, 13, 3, 77, 47);
+    }
+
+    @Test
+    public void testCrop_restartMarkers() throws IOException {
+        byte[] jpeg = encode(image(100, 60, BufferedImage.TYPE_INT_RGB), false, 3);
+        checkCrop(jpeg, 16, 16, 64, 32);
+        checkCrop(jpeg, 48, 32, 52, 28);
+    }
+
+    @Test
+    public void testCrop_smaller() throws IOException {
+        byte[] jpeg = encode(image(320, 240, BufferedImage.TYPE_INT_RGB), false, 0);
+        byte[] cropped = JpegCropper.parse(jpeg).crop(64, 48, 96, 64);
+        assertTrue(cropped.length < jpeg.length / 4);
+    }
+
+    @Test
+    public void testParse_progressive() throws IOException {
+        byte[] jpeg = encode(image(64, 64, BufferedImage.TYPE_INT_RGB), true, 0);
+        assertNull(JpegCropper.parse(jpeg));
+    }
+
+    @Test
+    public void testParse_invalid() {
+        assertNull(JpegCropper.parse(new byte[]{ 1, 2, 3, 4, 5 }));
+        assertNull(JpegCropper.parse(new byte[]{ (byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xD9 }));
+    }
+
+    @Test
+    public void testCrop_truncated() throws IOException {
+        byte[] jpeg = encode(image(100, 60, BufferedImage.TYPE_INT_RGB), false, 2);
+        byte[] truncated = Arrays.copyOf(jpeg, jpeg.length / 2);
+        // Missing restart markers are detected.
+        assertNull(JpegCropper.parse(truncated).crop(0, 0, 100, 60));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCrop_outside() throws IOException {
+        byte[] jpeg = encode(image(100, 60, BufferedImage.TYPE_INT_RGB), false, 0);
+        JpegCropper.parse(jpeg).crop(50, 0, 60, 60);
+    }
+}
@@ -0,0 +1,87 @@
+package com.otaliastudios.cameraview;
+
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class JpegOutputStreamTest {
+
+    private final static int MB = 1024 * 1024;
+
+    @Test
+    public void testEstimateSize() {
+        int high = JpegOutputStream.estimateSize(4000, 3000, 100);
+        int low = JpegOutputStream.estimateSize(4000, 3000, 50);
+        assertTrue(high > low);
+        assertTrue(high > 4 * MB && high < 8 * MB);
+        assertTrue(JpegOutputStream.estimateSize(2000, 1500, 100) < high / 3);
+    }
+
+    @Test
+    public void testWrite() {
+        JpegOutputStream output = new JpegOutputStream(null);
+        assertNull(output.getBuffer());
+        output.write(1);
+        output.write(new byte[]{ 2, 3, 4, 5 }, 1, 2);
+        assertEquals(3, output.size());
+        assertArrayEquals(new byte[]{ 1, 3, 4 }, output.toByteArray());
+
+        output.reset();
+        assertEquals(0, output.size());
+        assertEquals(0, output.toByteArray().length);
+    }
+
+    @Test
+    public void testReserve() {
+        JpegOutputStream output = new JpegOutputStream(null);
+        output.reserve(1000);
+        byte[] buffer = output.getBuffer();
+        // Lengths are rounded so that pooled arrays can be reused.
+        assertEquals(0, buffer.length % 1024);
+        output.write(new byte[buffer.length], 0, buffer.length);
+        assertSame(buffer, output.getBuffer());
+    }
+
+    @Test
+    public void testGrow() {
+        BufferPool pool = new BufferPool(10 * MB);
+        JpegOutputStream output = new JpegOutputStream(pool);
+        output.reserve(1000);
+        byte[] first = output.getBuffer();
+        byte[] data = new byte[first.length + 1];
+        for (int i = 0; i < data.length; i++) data[i] = (byte) i;
+        output.write(data, 0, data.length);
+        assertTrue(output.getBuffer().length > first.length);
+        assertArrayEquals(data, output.toByteArray());
+        // The old array went back to the pool.
+        assertEquals(first.length, pool.getPooledBytes());
+    }
+
+    @Test
+    public void testRelease() {
+        BufferPool pool = new BufferPool(10 * MB);
+        JpegOutputStream output = new JpegOutputStream(pool);
+        output.reserve(1000);
+        byte[] buffer = output.getBuffer();
+        output.write(5);
+        output.release();
+        assertNull(output.getBuffer());
+        assertEquals(0, output.size());
+        assertEquals(buffer.length, pool.getPooledBytes());
+
+        // The next stream of the same size takes the same array.
+        JpegOutputStream next = new JpegOutputStream(pool);
+        next.reserve(900);
+        assertSame(buffer, next.getBuffer());
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testWrite_outOfBounds() {
+        new JpegOutputStream(null).write(new byte[4], 2, 3);
+    }
+}
@@ -0,0 +1,80 @@
+package com.otaliastudios.cameraview;
+
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class PictureOutputTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final static byte[] DATA = new byte[]{ 1, 2, 3, 4, 5 };
+
+    @Test
+    public void testFile() throws IOException {
+        File file = folder.newFile();
+        Files.write(file.toPath(), new byte[100]);
+        PictureOutput output = PictureOutput.of(file);
+        assertEquals(file, output.getFile());
+        assertNull(output.getStream());
+        assertNull(output.getChannel());
+        output.write(DATA, 3);
+        // The file is truncated.
+        assertArrayEquals(new byte[]{ 1, 2, 3 }, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test
+    public void testStream() throws IOException {
+        final boolean[] closed = new boolean[1];
+        ByteArrayOutputStream stream = new ByteArrayOutputStream() {
+            @Override
+            public void close() throws IOException {
+                closed[0] = true;
+                super.close();
+            }
+        };
+        PictureOutput output = PictureOutput.of(stream);
+        assertNull(output.getFile());
+        assertSame(stream, output.getStream());
+        output.write(DATA, DATA.length);
+        assertArrayEquals(DATA, stream.toByteArray());
+        assertEquals(false, closed[0]);
+    }
+
+    @Test
+    public void testChannel() throws IOException {
+        File file = folder.newFile();
+        RandomAccessFile access = new RandomAccessFile(file, "rw");
+        access.write(new byte[]{ 9, 9 });
+        PictureOutput output = PictureOutput.of(access.getChannel());
+        assertNull(output.getFile());
+        assertSame(access.getChannel(), output.getChannel());
+        output.write(DATA, DATA.length);
+        // Written at the current position, and still open.
+        assertEquals(7, access.getChannel().position());
+        access.close();
+        assertArrayEquals(new byte[]{ 9, 9, 1, 2, 3, 4, 5 }, Files.readAllBytes(file.toPath()));
+    }
+
+    @Test(expected = IOException.class)
+    public void testError() throws IOException {
+        OutputStream stream = new FileOutputStream(folder.newFile());
+        stream.close();
+        PictureOutput.of(stream).write(DATA, DATA.length);
+    }
+}
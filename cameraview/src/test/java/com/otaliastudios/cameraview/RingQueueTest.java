@@ -0,0 +1,80 @@
+package com.otaliastudios.cameraview;
+
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class RingQueueTest {
+
+    @Test
+    public void testCapacity() {
+        assertEquals(1, new RingQueue<Integer>(1).capacity());
+        assertEquals(4, new RingQueue<Integer>(3).capacity());
+        assertEquals(8, new RingQueue<Integer>(8).capacity());
+    }
+
+    @Test
+    public void testOfferPoll() {
+        RingQueue<Integer> queue = new RingQueue<>(2);
+        assertNull(queue.poll());
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        assertFalse(queue.offer(3));
+        assertEquals(2, queue.size());
+        assertEquals(1, (int) queue.poll());
+        assertEquals(2, (int) queue.poll());
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+
+    @Test
+    public void testWrapAround() {
+        RingQueue<Integer> queue = new RingQueue<>(4);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(queue.offer(i));
+            assertTrue(queue.offer(i + 1000));
+            assertEquals(i, (int) queue.poll());
+            assertEquals(i + 1000, (int) queue.poll());
+        }
+    }
+
+    @Test
+    public void testConcurrent() throws Exception {
+        final RingQueue<Integer> queue = new RingQueue<>(8);
+        final int producers = 4;
+        final int items = 10000;
+        final AtomicInteger sum = new AtomicInteger(0);
+        final AtomicInteger received = new AtomicInteger(0);
+        final CountDownLatch latch = new CountDownLatch(producers);
+        for (int p = 0; p < producers; p++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 1; i <= items; i++) {
+                        while (!queue.offer(i)) Thread.yield();
+                    }
+                    latch.countDown();
+                }
+            }).start();
+        }
+        while (received.get() < producers * items) {
+            Integer item = queue.poll();
+            if (item == null) {
+                Thread.yield();
+            } else {
+                sum.addAndGet(item);
+                received.incrementAndGet();
+            }
+        }
+        latch.await();
+        assertEquals(producers * (items * (items + 1) / 2), sum.get());
+        assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,342 @@
+package com.otaliastudios.cameraview;
+
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RotationHelperTest {
+
+    // The original per-pixel implementation, to compare against.
+    private static byte[] reference(byte[] yuv, int width, int height, int rotation) {
+        if (rotation == 0) return yuv;
+        byte[] output = new byte[yuv.length];
+        int frameSize = width * height;
+        boolean swap = rotation % 180 != 0;
+        boolean xflip = rotation % 270 != 0;
+        boolean yflip = rotation >= 180;
+        for (int j = 0; j < height; j++) {
+            for (int i = 0; i < width; i++) {
+                int yIn = j * width + i;
+                int uIn = frameSize + (j >> 1) * width + (i & ~1);
+                int wOut = swap ? height : width;
+                int hOut = swap ? width : height;
+                int iOut = xflip ? wOut - (swap ? j : i) - 1 : (swap ? j : i);
+                int jOut = yflip ? hOut - (swap ? i : j) - 1 : (swap ? i : j);
+                int yOut = jOut * wOut + iOut;
+                int uOut = frameSize + (jOut >> 1) * wOut + (iOut & ~1);
+                output[yOut] = yuv[yIn];
+                output[uOut] = yuv[uIn];
+                output[uOut + 1] = yuv[uIn + 1];
+            }
+        }
+        return output;
+    }
+
+    private static byte[] random(int length) {
+        byte[] data = new byte[length];
+        new Random(length).nextBytes(data);
+        return data;
+    }
+
+    private static void check(int width, int height, int extra) {
+        // Preview buffers can be a bit bigger than the frame.
+        byte[] yuv = random(width * height * 3 / 2 + extra);
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            assertArrayEquals("Rotation " + rotation + ", size " + width + "x" + height,
+                    reference(yuv, width, height, rotation),
+                    RotationHelper.rotate(yuv, width, height, rotation));
+        }
+    }
+
+    @Test
+    public void testRotate() {
+        check(2, 2, 0);
+        check(4, 2, 0);
+        check(64, 32, 0);
+        check(640, 480, 1);
+    }
+
+    @Test
+    public void testRotate_partialTiles() {
+        check(66, 38, 0);
+        check(98, 130, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRotate_oddSize() {
+        RotationHelper.rotate(random(24), 5, 3, 90);
+    }
+
+    @Test
+    public void testRotate_zero() {
+        byte[] yuv = random(6);
+        assertTrue(RotationHelper.rotate(yuv, 2, 2, 0) == yuv);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRotate_invalid() {
+        RotationHelper.rotate(random(6), 2, 2, 45);
+    }
+
+    @Test
+    public void testRotate_output() {
+        int width = 66, height = 38;
+        byte[] yuv = random(width * height * 3 / 2);
+        byte[] output = new byte[yuv.length];
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            RotationHelper.rotate(yuv, width, height, rotation, output);
+            assertArrayEquals(reference(yuv, width, height, rotation), output);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRotate_outputTooSmall() {
+        RotationHelper.rotate(random(24), 4, 4, 90, new byte[23]);
+    }
+
+    private static void checkParallel(Executor executor, int width, int height, int bands) {
+        byte[] yuv = random(width * height * 3 / 2);
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            byte[] output = new byte[yuv.length];
+            RotationHelper.rotate(yuv, width, height, rotation, output, executor, bands);
+            assertArrayEquals("Rotation " + rotation + ", size " + width + "x" + height + ", bands " + bands,
+                    reference(yuv, width, height, rotation), output);
+        }
+    }
+
+    @Test
+    public void testRotate_parallel() {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            checkParallel(executor, 640, 480, 4);
+            checkParallel(executor, 98, 130, 3);
+            checkParallel(executor, 66, 38, 2);
+            checkParallel(executor, 4, 2, 4);
+            checkParallel(executor, 1920, 1080, 7);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testRotate_parallelRejected() {
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                throw new RejectedExecutionException();
+            }
+        };
+        checkParallel(executor, 640, 480, 4);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRotate_parallelInvalidBands() {
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+        RotationHelper.rotate(random(24), 4, 4, 90, new byte[24], executor, 0);
+    }
+
+    // Crops and mirrors an already rotated frame, one pixel at a time.
+    private static byte[] reference(byte[] rotated, int width, int height,
+                                    int cropX, int cropY, int cropWidth, int cropHeight, boolean mirror) {
+        byte[] output = new byte[cropWidth * cropHeight * 3 / 2];
+        int frameSize = width * height;
+        int cropSize = cropWidth * cropHeight;
+        for (int j = 0; j < cropHeight; j++) {
+            for (int i = 0; i < cropWidth; i++) {
+                int x = cropX + (mirror ? cropWidth - 1 - i : i);
+                int y = cropY + j;
+                output[j * cropWidth + i] = rotated[y * width + x];
+                if (i % 2 == 0 && j % 2 == 0) {
+                    int uIn = frameSize + (y >> 1) * width + (x & ~1);
+                    int uOut = cropSize + (j >> 1) * cropWidth + i;
+                    output[uOut] = rotated[uIn];
+                    output[uOut + 1] = rotated[uIn + 1];
+                }
+            }
+        }
+        return output;
+    }
+
+    // Averages blocks of an already transformed frame, one block at a time.
+    private static byte[] downscale(byte[] frame, int width, int height, int scale) {
+        int outWidth = width / scale;
+        int outHeight = height / scale;
+        byte[] output = new byte[outWidth * outHeight * 3 / 2];
+        int area = scale * scale;
+        for (int j = 0; j < outHeight; j++) {
+            for (int i = 0; i < outWidth; i++) {
+                int sum = 0;
+                for (int y = j * scale; y < (j + 1) * scale; y++) {
+                    for (int x = i * scale; x < (i + 1) * scale; x++) {
+                        sum += frame[y * width + x] & 0xFF;
+                    }
+                }
+                output[j * outWidth + i] = (byte) ((sum + area / 2) / area);
+            }
+        }
+        for (int j = 0; j < outHeight / 2; j++) {
+            for (int i = 0; i < outWidth / 2; i++) {
+                int v = 0, u = 0;
+                for (int y = j * scale; y < (j + 1) * scale; y++) {
+                    for (int x = i * scale; x < (i + 1) * scale; x++) {
+                        int index = width * height + y * width + 2 * x;
+                        v += frame[index] & 0xFF;
+                        u += frame[index + 1] & 0xFF;
+                    }
+                }
+                int index = outWidth * outHeight + j * outWidth + 2 * i;
+                output[index] = (byte) ((v + area / 2) / area);
+                output[index + 1] = (byte) ((u + area / 2) / area);
+            }
+        }
+        return output;
+    }
+
+    private static void checkTransform(Executor executor, int width, int height, int bands) {
+        byte[] yuv = random(width * height * 3 / 2);
+        for (int rotation = 0; rotation < 360; rotation += 90) {
+            byte[] rotated = reference(yuv, width, height, rotation);
+            int rotatedWidth = rotation % 180 == 0 ? width : height;
+            int rotatedHeight = rotation % 180 == 0 ? height : width;
+            int[][] crops = new int[][]{
+                    { 0, 0, rotatedWidth, rotatedHeight },
+                    { 2, 4, rotatedWidth - 6, rotatedHeight - 8 },
+                    { rotatedWidth / 2 & ~1, 0, rotatedWidth / 2 & ~1, 2 }
+            };
+            for (int[] crop : crops) {
+                for (boolean mirror : new boolean[]{ false, true }) {
+                    for (int scale = 1; scale <= 3; scale++) {
+                        // Shrink the crop so that it can be scaled.
+                        int cropWidth = crop[2] / (2 * scale) * (2 * scale);
+                        int cropHeight = crop[3] / (2 * scale) * (2 * scale);
+                        if (cropWidth == 0 || cropHeight == 0) continue;
+                        byte[] expected = reference(rotated, rotatedWidth, rotatedHeight,
+                                crop[0], crop[1], cropWidth, cropHeight, mirror);
+                        if (scale > 1) expected = downscale(expected, cropWidth, cropHeight, scale);
+                        byte[] output = new byte[expected.length];
+                        if (executor == null) {
+                            RotationHelper.transform(yuv, YuvLayout.nv21(width, height), rotation,
+                                    crop[0], crop[1], cropWidth, cropHeight, scale, mirror, output);
+                        } else {
+                            RotationHelper.transform(yuv, YuvLayout.nv21(width, height), rotation,
+                                    crop[0], crop[1], cropWidth, cropHeight, scale, mirror,
+                                    output, executor, bands);
+                        }
+                        assertArrayEquals("Rotation " + rotation + ", size " + width + "x" + height
+                                + ", crop " + crop[0] + "," + crop[1] + "," + cropWidth + "x" + cropHeight
+                                + ", scale " + scale + ", mirror " + mirror, expected, output);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testTransform() {
+        checkTransform(null, 66, 38, 1);
+        checkTransform(null, 98, 130, 1);
+        checkTransform(null, 640, 480, 1);
+    }
+
+    @Test
+    public void testTransform_parallel() {
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            checkTransform(executor, 98, 130, 3);
+            checkTransform(executor, 640, 480, 4);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTransform_layouts() {
+        int width = 66, height = 38;
+        byte[] nv21 = random(width * height * 3 / 2);
+        YuvLayout[] layouts = new YuvLayout[]{
+                YuvLayout.nv12(width, height),
+                YuvLayout.yv12(width, height),
+                YuvLayoutTest.strided(width, height)
+        };
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (YuvLayout layout : layouts) {
+                byte[] yuv = YuvLayoutTest.repack(nv21, layout);
+                for (int rotation = 0; rotation < 360; rotation += 90) {
+                    int rotatedWidth = rotation % 180 == 0 ? width : height;
+                    int rotatedHeight = rotation % 180 == 0 ? height : width;
+                    for (boolean mirror : new boolean[]{ false, true }) {
+                        for (int scale = 1; scale <= 2; scale++) {
+                            int cropWidth = rotatedWidth / (2 * scale) * (2 * scale);
+                            int cropHeight = rotatedHeight / (2 * scale) * (2 * scale);
+                            byte[] expected = new byte[(cropWidth / scale) * (cropHeight / scale) * 3 / 2];
+                            RotationHelper.transform(nv21, YuvLayout.nv21(width, height), rotation,
+                                    0, 0, cropWidth, cropHeight, scale, mirror, expected);
+                            byte[] output = new byte[expected.length];
+                            RotationHelper.transform(yuv, layout, rotation,
+                                    0, 0, cropWidth, cropHeight, scale, mirror, output);
+                            assertArrayEquals("Format " + layout.getFormat() + ", rotation " + rotation
+                                    + ", scale " + scale + ", mirror " + mirror, expected, output);
+                            RotationHelper.transform(yuv, layout, rotation,
+                                    0, 0, cropWidth, cropHeight, scale, mirror, output, executor, 2);
+                            assertArrayEquals(expected, output);
+                        }
+                    }
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransform_dataTooSmall() {
+        YuvLayout layout = YuvLayout.yv12(4, 4);
+        RotationHelper.transform(random(24), layout, 0, 0, 0, 4, 4, 1, false, new byte[24]);
+    }
+
+    @Test
+    public void testTransform_pool() {
+        BufferPool pool = new BufferPool(1024);
+        byte[] yuv = random(8 * 4 * 3 / 2);
+        byte[] first = RotationHelper.transform(yuv, YuvLayout.nv21(8, 4), 90, 0, 2, 4, 4, 1, true, pool);
+        assertEquals(4 * 4 * 3 / 2, first.length);
+        assertArrayEquals(reference(reference(yuv, 8, 4, 90), 4, 8, 0, 2, 4, 4, true), first);
+        pool.recycle(first);
+        assertSame(first, RotationHelper.transform(yuv, YuvLayout.nv21(8, 4), 0, 2, 0, 4, 4, 1, false, pool));
+
+        // Downscaling by 2 gives a 2x2 output.
+        byte[] scaled = RotationHelper.transform(yuv, YuvLayout.nv21(8, 4), 0, 0, 0, 4, 4, 2, false, pool);
+        assertEquals(2 * 2 * 3 / 2, scaled.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransform_cropOutside() {
+        RotationHelper.transform(random(24), YuvLayout.nv21(4, 4), 90, 2, 0, 4, 4, 1, false, new byte[24]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransform_cropOdd() {
+        RotationHelper.transform(random(24), YuvLayout.nv21(4, 4), 90, 1, 0, 2, 2, 1, false, new byte[24]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTransform_scaleNotDividing() {
+        RotationHelper.transform(random(96), YuvLayout.nv21(8, 8), 0, 0, 0, 6, 6, 2, false, new byte[96]);
+    }
+}
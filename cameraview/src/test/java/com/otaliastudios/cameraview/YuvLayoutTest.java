@@ -0,0 +1,116 @@
+package com.otaliastudios.cameraview;
+
+
+import android.graphics.ImageFormat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class YuvLayoutTest {
+
+    // A planar YUV_420_888 layout with padding everywhere, as Camera2 planes might have.
+    static YuvLayout strided(int width, int height) {
+        int yOffset = 4;
+        int yRowStride = width + 6;
+        int chromaRowStride = width / 2 + 5;
+        int uOffset = yOffset + yRowStride * height + 2;
+        int vOffset = uOffset + chromaRowStride * (height / 2) + 3;
+        return YuvLayout.yuv420(width, height, yOffset, yRowStride, uOffset, vOffset, chromaRowStride, 1);
+    }
+
+    // Copies NV21 data into a new array with the given layout.
+    static byte[] repack(byte[] nv21, YuvLayout layout) {
+        int width = layout.getWidth();
+        int height = layout.getHeight();
+        byte[] output = new byte[layout.getBufferSize()];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                output[layout.getYOffset() + y * layout.getYRowStride() + x] = nv21[y * width + x];
+            }
+        }
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                int in = width * height + y * width + 2 * x;
+                int out = y * layout.getChromaRowStride() + x * layout.getChromaPixelStride();
+                output[layout.getVOffset() + out] = nv21[in];
+                output[layout.getUOffset() + out] = nv21[in + 1];
+            }
+        }
+        return output;
+    }
+
+    @Test
+    public void testNv21() {
+        YuvLayout layout = YuvLayout.nv21(4, 2);
+        assertEquals(ImageFormat.NV21, layout.getFormat());
+        assertEquals(0, layout.getYOffset());
+        assertEquals(4, layout.getYRowStride());
+        assertEquals(8, layout.getVOffset());
+        assertEquals(9, layout.getUOffset());
+        assertEquals(4, layout.getChromaRowStride());
+        assertEquals(2, layout.getChromaPixelStride());
+        assertEquals(12, layout.getDataSize());
+        assertEquals(12, layout.getBufferSize());
+        assertTrue(layout.isNv21());
+        assertTrue(layout.isVuInterleaved());
+    }
+
+    @Test
+    public void testNv12() {
+        YuvLayout layout = YuvLayout.nv12(4, 2);
+        assertEquals(ImageFormat.YUV_420_888, layout.getFormat());
+        assertEquals(8, layout.getUOffset());
+        assertEquals(9, layout.getVOffset());
+        assertEquals(12, layout.getDataSize());
+        assertEquals(12, layout.getBufferSize());
+        assertFalse(layout.isNv21());
+        assertFalse(layout.isVuInterleaved());
+    }
+
+    @Test
+    public void testYv12() {
+        // Strides are aligned to 16 bytes, and the last chroma row is padded as well.
+        YuvLayout layout = YuvLayout.yv12(20, 4);
+        assertEquals(ImageFormat.YV12, layout.getFormat());
+        assertEquals(32, layout.getYRowStride());
+        assertEquals(16, layout.getChromaRowStride());
+        assertEquals(1, layout.getChromaPixelStride());
+        assertEquals(128, layout.getVOffset());
+        assertEquals(160, layout.getUOffset());
+        assertEquals(160 + 16 + 10, layout.getDataSize());
+        assertEquals(32 * 4 + 2 * 16 * 2, layout.getBufferSize());
+        assertFalse(layout.isNv21());
+    }
+
+    @Test
+    public void testOf() {
+        assertEquals(ImageFormat.NV21, YuvLayout.of(ImageFormat.NV21, 4, 4).getFormat());
+        assertEquals(ImageFormat.YV12, YuvLayout.of(ImageFormat.YV12, 4, 4).getFormat());
+        assertNull(YuvLayout.of(ImageFormat.JPEG, 4, 4));
+    }
+
+    @Test
+    public void testYuv420() {
+        YuvLayout layout = strided(8, 4);
+        assertEquals(62, layout.getUOffset());
+        assertEquals(83, layout.getVOffset());
+        assertEquals(83 + 9 + 4, layout.getDataSize()); // The last V row is not padded
+        assertEquals(83 + 2 * 9, layout.getBufferSize());
+        assertFalse(layout.isNv21());
+        assertFalse(layout.isVuInterleaved());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidStride() {
+        YuvLayout.yuv420(8, 4, 0, 6, 32, 40, 8, 1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidSize() {
+        YuvLayout.nv21(0, 4);
+    }
+}